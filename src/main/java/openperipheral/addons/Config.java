@@ -19,6 +19,22 @@ public class Config {
 	@ConfigProperty(category = "sensor", name = "normalRange")
 	public static int sensorRange = 5;
 
+	@OnLineModifiable
+	@ConfigProperty(category = "glasses", name = "resyncHistorySize", comment = "Number of recent updates kept per surface, used to resend only missing changes to clients that fell behind")
+	public static int glassesResyncHistorySize = 32;
+
+	@OnLineModifiable
+	@ConfigProperty(category = "glasses", name = "resetLimit", comment = "Maximum number of surface reset requests accepted from single player in period set by 'resetLimitPeriod'. Non-positive value disables limit")
+	public static int glassesResetLimit = 20;
+
+	@OnLineModifiable
+	@ConfigProperty(category = "glasses", name = "resetLimitPeriod", comment = "Length of reset limit period, in seconds")
+	public static int glassesResetLimitPeriod = 10;
+
+	@OnLineModifiable
+	@ConfigProperty(category = "glasses", name = "compressionThreshold", comment = "Minimal size (in bytes) of surface update that will be compressed before sending")
+	public static int glassesCompressionThreshold = 256;
+
 	@OnLineModifiable
 	@ConfigProperty(category = "misc", comment = "Should turtles with OPA updates be visible in creative")
 	public static boolean addTurtlesToCreative = true;
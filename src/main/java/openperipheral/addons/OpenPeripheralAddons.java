@@ -162,6 +162,7 @@ public class OpenPeripheralAddons {
 		ComputerCraftAPI.registerTurtleUpgrade(narcissiticUpgrade);
 
 		MinecraftForge.EVENT_BUS.register(TerminalManagerServer.instance);
+		FMLCommonHandler.instance().bus().register(TerminalManagerServer.instance);
 
 		NetworkRegistry.INSTANCE.registerGuiHandler(instance, OpenMods.proxy.wrapHandler(null));
 
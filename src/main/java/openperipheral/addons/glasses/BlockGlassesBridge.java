@@ -34,6 +34,7 @@ public class BlockGlassesBridge extends BlockOP {
 			Item item = glassesStack.getItem();
 			if (item instanceof ITerminalItem) {
 				((ITerminalItem)item).bindToTerminal(glassesStack, te.getGuid());
+				TerminalUtils.onTerminalBound();
 				return true;
 			}
 		}
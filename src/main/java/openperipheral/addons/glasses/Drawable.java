@@ -1,21 +1,23 @@
 package openperipheral.addons.glasses;
 
 import java.lang.reflect.Field;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 
 import net.minecraft.client.Minecraft;
 import net.minecraft.client.gui.FontRenderer;
+import net.minecraft.client.renderer.GLAllocation;
 import net.minecraft.client.renderer.Tessellator;
 import net.minecraft.client.renderer.entity.RenderItem;
-import net.minecraft.client.renderer.texture.TextureManager;
-import net.minecraft.client.renderer.texture.TextureMap;
 import net.minecraft.item.Item;
 import net.minecraft.item.ItemStack;
 import net.minecraft.util.IIcon;
+import net.minecraftforge.client.IItemRenderer.ItemRenderType;
+import net.minecraftforge.client.MinecraftForgeClient;
 import net.minecraftforge.fluids.Fluid;
 import net.minecraftforge.fluids.FluidRegistry;
-import openmods.structured.ElementField;
 import openmods.structured.IStructureContainer;
 import openperipheral.api.*;
 
@@ -32,7 +34,7 @@ import cpw.mods.fml.relauncher.Side;
 import cpw.mods.fml.relauncher.SideOnly;
 
 @AdapterSourceName("glasses_drawable")
-public abstract class Drawable implements IPropertyCallback, IStructureContainer<ElementField> {
+public abstract class Drawable implements IPropertyCallback, IStructureContainer<DrawableElement> {
 
 	private enum Type {
 		GRADIENT {
@@ -64,20 +66,67 @@ public abstract class Drawable implements IPropertyCallback, IStructureContainer
 			public Drawable create() {
 				return new ItemIcon();
 			}
+		},
+		// must stay last, since ordinal is sent to client
+		GROUP {
+			@Override
+			public Drawable create() {
+				return new Group();
+			}
 		};
 
 		public abstract Drawable create();
 
 		public static final Type[] TYPES = values();
+
+		public static Type fromName(String name) {
+			Preconditions.checkNotNull(name, "Missing object type");
+			try {
+				return valueOf(name.toUpperCase());
+			} catch (IllegalArgumentException e) {
+				throw new IllegalArgumentException("Unknown object type: " + name);
+			}
+		}
 	}
 
+	private static final String SPEC_TYPE = "type";
+
+	private static final int GROUP_SLOT = DrawableSchema.get(Drawable.class).getSlot("group");
+
+	private static final int DURATION_SLOT = DrawableSchema.get(Drawable.class).getSlot("animationDuration");
+
+	private static final int EASING_SLOT = DrawableSchema.get(Drawable.class).getSlot("animationEasing");
+
 	private boolean deleted;
 
 	private int containerId;
 
 	private SurfaceServer owner;
 
-	private final Map<Field, ElementField> fields = Maps.newHashMap();
+	private final DrawableSchema schema = DrawableSchema.get(getClass());
+
+	private DrawableElement[] elements;
+
+	// created on client when first animation is received, since most objects are never animated
+	private DrawableAnimator animator;
+
+	private boolean isDisplayed;
+
+	private IElementListener elementListener;
+
+	// size used by overlap tests, recalculated only after property change or animation step
+	private boolean isSizeValid;
+
+	private float drawWidth;
+
+	private float drawHeight;
+
+	/**
+	 * Receives changes of properties decoded from network data (i.e. only on client side)
+	 */
+	public interface IElementListener {
+		public void onElementChanged(Drawable drawable, DrawableElement element);
+	}
 
 	@CallbackProperty
 	public short x;
@@ -88,6 +137,18 @@ public abstract class Drawable implements IPropertyCallback, IStructureContainer
 	@CallbackProperty
 	public short z;
 
+	@CallbackProperty(getterDesc = "Id of group this object belongs to (0 if none). Position of grouped object is relative to group. Reset to 0 when group is deleted")
+	public int group;
+
+	@CallbackProperty(getterDesc = "Is object drawn. Hidden object keeps its id and properties")
+	public boolean visible = true;
+
+	@CallbackProperty(readOnly = true, getterDesc = "Duration (in ticks) of last animation started with animate()")
+	public short animationDuration;
+
+	@CallbackProperty(readOnly = true, getterDesc = "Easing of last animation started with animate()")
+	public String animationEasing = DrawableAnimator.Easing.LINEAR.name().toLowerCase();
+
 	protected Drawable() {}
 
 	protected Drawable(short x, short y) {
@@ -95,22 +156,131 @@ public abstract class Drawable implements IPropertyCallback, IStructureContainer
 		this.y = y;
 	}
 
+	/**
+	 * Called every frame before object is drawn, but never during display list compilation, so objects may prepare own lists here
+	 *
+	 * @param opacity
+	 *            multiplier of alpha of drawn colors (i.e. opacity of group), same as will be passed to {@link #draw(float, float)}
+	 */
+	@SideOnly(Side.CLIENT)
+	public void update(float partialTicks, float opacity) {
+		isDisplayed = true;
+		if (animator != null) {
+			if (animator.isAnimating()) isSizeValid = false;
+			animator.update((double)Minecraft.getMinecraft().theWorld.getTotalWorldTime() + partialTicks, animationDuration, animationEasing);
+		}
+	}
+
+	/**
+	 * @return true if object looks same in every frame, so it can be compiled into display list
+	 */
+	@SideOnly(Side.CLIENT)
+	public boolean isCacheable() {
+		return animator == null || !animator.isAnimating();
+	}
+
 	@SideOnly(Side.CLIENT)
-	public void draw(float partialTicks) {
+	public void draw(float partialTicks, float opacity) {
 		GL11.glPushMatrix();
 		GL11.glTranslated(x, y, z);
-		drawContents(partialTicks);
+		drawContents(partialTicks, opacity);
 		GL11.glPopMatrix();
 	}
 
 	@SideOnly(Side.CLIENT)
-	protected abstract void drawContents(float partialTicks);
+	protected abstract void drawContents(float partialTicks, float opacity);
+
+	@SideOnly(Side.CLIENT)
+	protected abstract float calculateDrawWidth();
+
+	@SideOnly(Side.CLIENT)
+	protected abstract float calculateDrawHeight();
+
+	@SideOnly(Side.CLIENT)
+	private void validateSize() {
+		if (!isSizeValid) {
+			drawWidth = calculateDrawWidth();
+			drawHeight = calculateDrawHeight();
+			isSizeValid = true;
+		}
+	}
+
+	@SideOnly(Side.CLIENT)
+	public float getDrawWidth() {
+		validateSize();
+		return drawWidth;
+	}
+
+	@SideOnly(Side.CLIENT)
+	public float getDrawHeight() {
+		validateSize();
+		return drawHeight;
+	}
+
+	/**
+	 * @return false if area of object is not known, so it must be treated as overlapping everything
+	 */
+	@SideOnly(Side.CLIENT)
+	public boolean isBounded() {
+		return true;
+	}
+
+	@SideOnly(Side.CLIENT)
+	public boolean overlaps(Drawable other) {
+		if (!isBounded() || !other.isBounded()) return true;
+		return x < other.x + other.getDrawWidth() && other.x < x + getDrawWidth() &&
+				y < other.y + other.getDrawHeight() && other.y < y + getDrawHeight();
+	}
+
+	/**
+	 * Called when object is removed from client surface. Releases any GL resources held by object
+	 */
+	@SideOnly(Side.CLIENT)
+	public void releaseResources() {}
 
 	protected abstract Type getTypeEnum();
 
+	/**
+	 * Object drawn as single tessellator pass, so renderer can merge it with other objects using same render state.
+	 * Other objects are always drawn separately with {@link #draw(float, float)}
+	 */
+	public abstract static class Batchable extends Drawable {
+		protected Batchable() {}
+
+		protected Batchable(short x, short y) {
+			super(x, y);
+		}
+
+		@SideOnly(Side.CLIENT)
+		public abstract SurfaceRenderer.BatchMode getBatchMode();
+
+		/**
+		 * Adds vertices of this object to tessellator started by batch. Vertices are in surface coordinates (i.e. already moved by x, y and z)
+		 */
+		@SideOnly(Side.CLIENT)
+		public void addToBatch(Tessellator tessellator, float opacity) {
+			addVertices(tessellator, x, y, z, opacity);
+		}
+
+		@SideOnly(Side.CLIENT)
+		protected abstract void addVertices(Tessellator tessellator, double x, double y, double z, float opacity);
+
+		@Override
+		@SideOnly(Side.CLIENT)
+		protected void drawContents(float partialTicks, float opacity) {
+			final SurfaceRenderer.BatchMode mode = getBatchMode();
+			mode.begin();
+			Tessellator tessellator = Tessellator.instance;
+			tessellator.startDrawingQuads();
+			addVertices(tessellator, 0, 0, 0, opacity);
+			tessellator.draw();
+			mode.end();
+		}
+	}
+
 	@LuaObject
 	@AdapterSourceName("glasses_box")
-	public static class SolidBox extends Drawable {
+	public static class SolidBox extends Batchable {
 		@CallbackProperty
 		public short width;
 
@@ -118,10 +288,10 @@ public abstract class Drawable implements IPropertyCallback, IStructureContainer
 		public short height;
 
 		@CallbackProperty
-		public int color;
+		public int color = 0xFFFFFF;
 
 		@CallbackProperty
-		public float opacity;
+		public float opacity = 1;
 
 		private SolidBox() {}
 
@@ -135,26 +305,32 @@ public abstract class Drawable implements IPropertyCallback, IStructureContainer
 
 		@Override
 		@SideOnly(Side.CLIENT)
-		protected void drawContents(float partialTicks) {
-			GL11.glEnable(GL11.GL_BLEND);
-			GL11.glDisable(GL11.GL_TEXTURE_2D);
-			GL11.glDisable(GL11.GL_ALPHA_TEST);
-			GL11.glBlendFunc(GL11.GL_SRC_ALPHA, GL11.GL_ONE_MINUS_SRC_ALPHA);
+		public SurfaceRenderer.BatchMode getBatchMode() {
+			return SurfaceRenderer.BatchMode.FLAT;
+		}
 
-			Tessellator tessellator = Tessellator.instance;
-			tessellator.startDrawingQuads();
-			tessellator.setColorRGBA_I(color, (int)(opacity * 255));
+		@Override
+		@SideOnly(Side.CLIENT)
+		protected void addVertices(Tessellator tessellator, double x, double y, double z, float opacity) {
+			tessellator.setColorRGBA_I(color, (int)(this.opacity * opacity * 255));
 
-			tessellator.addVertex(0, 0, 0);
-			tessellator.addVertex(0, height, 0);
+			tessellator.addVertex(x, y, z);
+			tessellator.addVertex(x, y + height, z);
 
-			tessellator.addVertex(width, height, 0);
-			tessellator.addVertex(width, 0, 0);
+			tessellator.addVertex(x + width, y + height, z);
+			tessellator.addVertex(x + width, y, z);
+		}
 
-			tessellator.draw();
-			GL11.glDisable(GL11.GL_BLEND);
-			GL11.glEnable(GL11.GL_TEXTURE_2D);
-			GL11.glEnable(GL11.GL_ALPHA_TEST);
+		@Override
+		@SideOnly(Side.CLIENT)
+		protected float calculateDrawWidth() {
+			return width;
+		}
+
+		@Override
+		@SideOnly(Side.CLIENT)
+		protected float calculateDrawHeight() {
+			return height;
 		}
 
 		@Override
@@ -166,7 +342,7 @@ public abstract class Drawable implements IPropertyCallback, IStructureContainer
 
 	@LuaObject
 	@AdapterSourceName("glasses_gradient")
-	public static class GradientBox extends Drawable {
+	public static class GradientBox extends Batchable {
 		@CallbackProperty
 		public short width;
 
@@ -177,13 +353,13 @@ public abstract class Drawable implements IPropertyCallback, IStructureContainer
 		public int color1;
 
 		@CallbackProperty
-		public float opacity1;
+		public float opacity1 = 1;
 
 		@CallbackProperty
 		public int color2;
 
 		@CallbackProperty
-		public float opacity2;
+		public float opacity2 = 1;
 
 		@CallbackProperty
 		public int gradient;
@@ -196,56 +372,66 @@ public abstract class Drawable implements IPropertyCallback, IStructureContainer
 			this.height = height;
 			this.color1 = color1;
 			this.opacity1 = opacity1;
-			// compat hack
+			this.color2 = color2;
+			this.opacity2 = opacity2;
+			this.gradient = gradient;
+			normalizeGradient();
+		}
+
+		// compat hack
+		private void normalizeGradient() {
 			if (gradient == 0) {
 				this.color2 = color1;
 				this.opacity2 = opacity1;
-			} else {
-				this.color2 = color2;
-				this.opacity2 = opacity2;
 			}
-			this.gradient = gradient;
 		}
 
 		@Override
-		@SideOnly(Side.CLIENT)
-		protected void drawContents(float partialTicks) {
-			GL11.glEnable(GL11.GL_BLEND);
-			GL11.glDisable(GL11.GL_TEXTURE_2D);
-			GL11.glDisable(GL11.GL_ALPHA_TEST);
-			GL11.glBlendFunc(GL11.GL_SRC_ALPHA, GL11.GL_ONE_MINUS_SRC_ALPHA);
-			GL11.glShadeModel(GL11.GL_SMOOTH);
+		protected void onCreatedFromSpec() {
+			normalizeGradient();
+		}
 
-			Tessellator tessellator = Tessellator.instance;
+		@Override
+		@SideOnly(Side.CLIENT)
+		public SurfaceRenderer.BatchMode getBatchMode() {
+			return SurfaceRenderer.BatchMode.FLAT;
+		}
 
-			tessellator.startDrawingQuads();
-			tessellator.setColorRGBA_I(color1, (int)(opacity1 * 255));
+		@Override
+		@SideOnly(Side.CLIENT)
+		protected void addVertices(Tessellator tessellator, double x, double y, double z, float opacity) {
+			tessellator.setColorRGBA_I(color1, (int)(opacity1 * opacity * 255));
 
 			if (gradient == 1) {
-				tessellator.addVertex(0, height, 0);
-				tessellator.addVertex(width, height, 0);
+				tessellator.addVertex(x, y + height, z);
+				tessellator.addVertex(x + width, y + height, z);
 			} else {
-				tessellator.addVertex(width, height, 0);
-				tessellator.addVertex(width, 0, 0);
+				tessellator.addVertex(x + width, y + height, z);
+				tessellator.addVertex(x + width, y, z);
 
 			}
 
-			tessellator.setColorRGBA_I(color2, (int)(opacity2 * 255));
+			tessellator.setColorRGBA_I(color2, (int)(opacity2 * opacity * 255));
 
 			if (gradient == 1) {
-				tessellator.addVertex(width, 0, 0);
-				tessellator.addVertex(0, 0, 0);
+				tessellator.addVertex(x + width, y, z);
+				tessellator.addVertex(x, y, z);
 			} else {
-				tessellator.addVertex(0, 0, 0);
-				tessellator.addVertex(0, height, 0);
+				tessellator.addVertex(x, y, z);
+				tessellator.addVertex(x, y + height, z);
 			}
+		}
 
-			tessellator.draw();
-			GL11.glShadeModel(GL11.GL_FLAT);
-			GL11.glDisable(GL11.GL_BLEND);
-			GL11.glEnable(GL11.GL_TEXTURE_2D);
-			GL11.glEnable(GL11.GL_ALPHA_TEST);
+		@Override
+		@SideOnly(Side.CLIENT)
+		protected float calculateDrawWidth() {
+			return width;
+		}
 
+		@Override
+		@SideOnly(Side.CLIENT)
+		protected float calculateDrawHeight() {
+			return height;
 		}
 
 		@Override
@@ -258,9 +444,18 @@ public abstract class Drawable implements IPropertyCallback, IStructureContainer
 	@LuaObject
 	@AdapterSourceName("glasses_icon")
 	public static class ItemIcon extends Drawable {
+		private static final int ITEM_ID_SLOT = DrawableSchema.get(ItemIcon.class).getSlot("itemId");
+
+		private static final int META_SLOT = DrawableSchema.get(ItemIcon.class).getSlot("meta");
+
 		@SideOnly(Side.CLIENT)
 		private RenderItem renderItem;
 
+		@SideOnly(Side.CLIENT)
+		private ItemStack drawStack;
+
+		private boolean isStackResolved;
+
 		@CallbackProperty
 		public float scale = 1;
 
@@ -278,6 +473,16 @@ public abstract class Drawable implements IPropertyCallback, IStructureContainer
 			this.meta = meta;
 		}
 
+		@Override
+		@SideOnly(Side.CLIENT)
+		public boolean isCacheable() {
+			if (!super.isCacheable()) return false;
+
+			// enchantment effect and custom renderers may change every frame
+			final ItemStack drawStack = getDrawStack();
+			return drawStack == null || (!drawStack.hasEffect(0) && MinecraftForgeClient.getItemRenderer(drawStack, ItemRenderType.INVENTORY) == null);
+		}
+
 		@SideOnly(Side.CLIENT)
 		private RenderItem getRenderItem() {
 			if (renderItem == null) renderItem = new RenderItem();
@@ -285,21 +490,56 @@ public abstract class Drawable implements IPropertyCallback, IStructureContainer
 		}
 
 		@Override
+		protected void onElementChanged(DrawableElement element) {
+			if (element.slot == ITEM_ID_SLOT || element.slot == META_SLOT) isStackResolved = false;
+		}
+
+		// result may be null, if id is invalid. Failed lookups are also cached
+		@SideOnly(Side.CLIENT)
+		private ItemStack getDrawStack() {
+			if (!isStackResolved) {
+				drawStack = resolveStack();
+				isStackResolved = true;
+			}
+
+			return drawStack;
+		}
+
 		@SideOnly(Side.CLIENT)
-		protected void drawContents(float partialTicks) {
-			if (Strings.isNullOrEmpty(itemId)) return;
+		private ItemStack resolveStack() {
+			if (Strings.isNullOrEmpty(itemId)) return null;
 			String[] itemSplit = itemId.split(":");
-			if (itemSplit.length != 2) return;
+			if (itemSplit.length != 2) return null;
 
 			Item item = GameRegistry.findItem(itemSplit[0], itemSplit[1]);
-			if (item == null) return;
+			if (item == null) return null;
+
+			return new ItemStack(item, 1, meta);
+		}
+
+		@Override
+		@SideOnly(Side.CLIENT)
+		protected void drawContents(float partialTicks, float opacity) {
+			final ItemStack drawStack = getDrawStack();
+			if (drawStack == null) return;
 
-			ItemStack drawStack = new ItemStack(item, 1, meta);
 			GL11.glScalef(scale, scale, scale);
 			getRenderItem().renderItemAndEffectIntoGUI(null, Minecraft.getMinecraft().getTextureManager(), drawStack, 0, 0);
 			GL11.glDisable(GL11.GL_LIGHTING);
 		}
 
+		@Override
+		@SideOnly(Side.CLIENT)
+		protected float calculateDrawWidth() {
+			return 16 * scale;
+		}
+
+		@Override
+		@SideOnly(Side.CLIENT)
+		protected float calculateDrawHeight() {
+			return 16 * scale;
+		}
+
 		@Override
 		public Type getTypeEnum() {
 			return Type.ITEM;
@@ -309,7 +549,9 @@ public abstract class Drawable implements IPropertyCallback, IStructureContainer
 
 	@LuaObject
 	@AdapterSourceName("glasses_liquid")
-	public static class LiquidIcon extends Drawable {
+	public static class LiquidIcon extends Batchable {
+		private static final int FLUID_SLOT = DrawableSchema.get(LiquidIcon.class).getSlot("fluid");
+
 		@CallbackProperty
 		public short width;
 
@@ -319,6 +561,10 @@ public abstract class Drawable implements IPropertyCallback, IStructureContainer
 		@CallbackProperty
 		public String fluid;
 
+		private Fluid drawFluid;
+
+		private boolean isFluidResolved;
+
 		@CallbackProperty
 		public float alpha = 1;
 
@@ -332,43 +578,49 @@ public abstract class Drawable implements IPropertyCallback, IStructureContainer
 		}
 
 		@Override
+		protected void onElementChanged(DrawableElement element) {
+			if (element.slot == FLUID_SLOT) isFluidResolved = false;
+		}
+
 		@SideOnly(Side.CLIENT)
-		protected void drawContents(float partialTicks) {
-			Fluid drawLiquid = FluidRegistry.getFluid(fluid);
+		private Fluid getDrawFluid() {
+			if (!isFluidResolved) {
+				drawFluid = FluidRegistry.getFluid(fluid);
+				isFluidResolved = true;
+			}
+
+			return drawFluid;
+		}
 
+		@Override
+		@SideOnly(Side.CLIENT)
+		public SurfaceRenderer.BatchMode getBatchMode() {
+			return SurfaceRenderer.BatchMode.BLOCK_ATLAS;
+		}
+
+		@Override
+		@SideOnly(Side.CLIENT)
+		protected void addVertices(Tessellator tessellator, double x, double y, double z, float opacity) {
+			Fluid drawLiquid = getDrawFluid();
 			if (drawLiquid == null) return;
 
+			// not cached, since it changes after resource reload
 			IIcon fluidIcon = drawLiquid.getFlowingIcon();
 			if (fluidIcon == null) return;
 
-			final int iconWidth = fluidIcon.getIconWidth();
-			final int iconHeight = fluidIcon.getIconHeight();
-
-			if (iconWidth <= 0 || iconHeight <= 0) return;
-
-			TextureManager render = FMLClientHandler.instance().getClient().renderEngine;
-			render.bindTexture(TextureMap.locationBlocksTexture);
-			float xIterations = (float)width / iconWidth;
-			float yIterations = (float)height / iconHeight;
-
-			for (float xIteration = 0; xIteration < xIterations; xIteration += 1) {
-				for (float yIteration = 0; yIteration < yIterations; yIteration += 1) {
-					// Draw whole or partial
-					final float xDrawSize = Math.min(xIterations - xIteration, 1);
-					final float yDrawSize = Math.min(yIterations - yIteration, 1);
-
-					GlassesRenderingUtils.drawTexturedQuad(
-							xIteration * iconWidth,
-							yIteration * iconHeight,
-							fluidIcon,
-							xDrawSize * iconWidth,
-							yDrawSize * iconHeight,
-							xDrawSize,
-							yDrawSize,
-							alpha);
-				}
-			}
+			GlassesRenderingUtils.addTiledQuad(tessellator, x, y, z, fluidIcon, width, height, alpha * opacity);
+		}
+
+		@Override
+		@SideOnly(Side.CLIENT)
+		protected float calculateDrawWidth() {
+			return width;
+		}
 
+		@Override
+		@SideOnly(Side.CLIENT)
+		protected float calculateDrawHeight() {
+			return height;
 		}
 
 		@Override
@@ -381,11 +633,13 @@ public abstract class Drawable implements IPropertyCallback, IStructureContainer
 	@LuaObject
 	@AdapterSourceName("glasses_text")
 	public static class Text extends Drawable {
+		private static final int TEXT_SLOT = DrawableSchema.get(Text.class).getSlot("text");
+
 		@CallbackProperty
 		public String text;
 
 		@CallbackProperty
-		public int color;
+		public int color = 0xFFFFFF;
 
 		@CallbackProperty
 		public double alpha = 1;
@@ -393,6 +647,31 @@ public abstract class Drawable implements IPropertyCallback, IStructureContainer
 		@CallbackProperty
 		public float scale = 1;
 
+		@CallbackProperty(getterDesc = "Maximum width of text (after scaling). Longer text is wrapped on client. Zero disables wrapping")
+		public short maxWidth;
+
+		// set when new text is received, strings are never animated
+		private boolean isTextChanged = true;
+
+		// obfuscated text (formatting code k) shows different glyphs in every frame
+		private boolean isObfuscated;
+
+		// parameters of current layout, compared on use, since animations change values without notifications
+		private float layoutScale;
+
+		private short layoutMaxWidth;
+
+		private List<String> lines;
+
+		private int layoutWidth;
+
+		private int displayList;
+
+		private boolean isDisplayListValid;
+
+		// color of text compiled into display list, including alpha
+		private int displayListColor;
+
 		private Text() {}
 
 		public Text(short x, short y, String text, int color) {
@@ -401,12 +680,118 @@ public abstract class Drawable implements IPropertyCallback, IStructureContainer
 			this.color = color;
 		}
 
+		@SideOnly(Side.CLIENT)
+		private static FontRenderer getFontRenderer() {
+			return FMLClientHandler.instance().getClient().fontRenderer;
+		}
+
+		@SideOnly(Side.CLIENT)
+		private int getRenderColor(float opacity) {
+			return (int)(alpha * opacity * 255) << 24 | color;
+		}
+
+		@SideOnly(Side.CLIENT)
+		private boolean isLayoutValid() {
+			// scale only matters for wrapped text
+			return lines != null && !isTextChanged && maxWidth == layoutMaxWidth && (maxWidth <= 0 || scale == layoutScale);
+		}
+
+		@SideOnly(Side.CLIENT)
+		@SuppressWarnings("unchecked")
+		private List<String> getLines() {
+			if (!isLayoutValid()) {
+				isTextChanged = false;
+				layoutScale = scale;
+				layoutMaxWidth = maxWidth;
+				isDisplayListValid = false;
+				FontRenderer fontRenderer = getFontRenderer();
+				if (Strings.isNullOrEmpty(text)) lines = Collections.emptyList();
+				else if (maxWidth > 0 && scale > 0) lines = fontRenderer.listFormattedStringToWidth(text, Math.max(1, (int)(maxWidth / scale)));
+				else lines = Collections.singletonList(text);
+
+				int width = 0;
+				for (String line : lines)
+					width = Math.max(width, fontRenderer.getStringWidth(line));
+				layoutWidth = width;
+			}
+
+			return lines;
+		}
+
+		@Override
+		protected void onElementChanged(DrawableElement element) {
+			if (element.slot == TEXT_SLOT) {
+				isTextChanged = true;
+				isObfuscated = text != null && (text.contains("\u00a7k") || text.contains("\u00a7K"));
+			}
+		}
+
+		@Override
+		@SideOnly(Side.CLIENT)
+		public boolean isCacheable() {
+			return !isObfuscated && super.isCacheable();
+		}
+
+		@Override
+		@SideOnly(Side.CLIENT)
+		public void update(float partialTicks, float opacity) {
+			super.update(partialTicks, opacity);
+
+			final List<String> lines = getLines();
+			// during animation text is drawn directly, to avoid recompiling list in every frame
+			if (!isCacheable()) return;
+
+			final int renderColor = getRenderColor(opacity);
+			if (isDisplayListValid && displayListColor == renderColor) return;
+
+			if (displayList == 0) displayList = GLAllocation.generateDisplayLists(1);
+			GL11.glNewList(displayList, GL11.GL_COMPILE);
+			drawLines(lines, renderColor);
+			GL11.glEndList();
+			displayListColor = renderColor;
+			isDisplayListValid = true;
+		}
+
+		@SideOnly(Side.CLIENT)
+		private static void drawLines(List<String> lines, int renderColor) {
+			FontRenderer fontRenderer = getFontRenderer();
+			int lineY = 0;
+			for (String line : lines) {
+				fontRenderer.drawString(line, 0, lineY, renderColor);
+				lineY += fontRenderer.FONT_HEIGHT;
+			}
+		}
+
 		@Override
 		@SideOnly(Side.CLIENT)
-		protected void drawContents(float partialTicks) {
-			FontRenderer fontRenderer = FMLClientHandler.instance().getClient().fontRenderer;
+		protected void drawContents(float partialTicks, float opacity) {
 			GL11.glScalef(scale, scale, scale);
-			fontRenderer.drawString(text, 0, 0, ((int)(alpha * 255) << 24 | color));
+			final int renderColor = getRenderColor(opacity);
+			if (isDisplayListValid && isLayoutValid() && displayListColor == renderColor) GL11.glCallList(displayList);
+			else drawLines(getLines(), renderColor);
+		}
+
+		@Override
+		@SideOnly(Side.CLIENT)
+		protected float calculateDrawWidth() {
+			getLines();
+			return layoutWidth * scale;
+		}
+
+		@Override
+		@SideOnly(Side.CLIENT)
+		protected float calculateDrawHeight() {
+			return getLines().size() * getFontRenderer().FONT_HEIGHT * scale;
+		}
+
+		@Override
+		@SideOnly(Side.CLIENT)
+		public void releaseResources() {
+			if (displayList != 0) {
+				GlassesRenderingUtils.releaseDisplayList(displayList);
+				displayList = 0;
+			}
+			isDisplayListValid = false;
 		}
 
 		@Override
@@ -415,6 +800,135 @@ public abstract class Drawable implements IPropertyCallback, IStructureContainer
 		}
 	}
 
+	/**
+	 * Container for other objects. Position, scale and opacity of group is applied to all objects in it, so whole group can be moved with single update.
+	 * Groups can't be nested.
+	 */
+	@LuaObject
+	@AdapterSourceName("glasses_group")
+	public static class Group extends Drawable {
+		@CallbackProperty
+		public float scale = 1;
+
+		@CallbackProperty
+		public float opacity = 1;
+
+		// resolved by client on every surface update
+		private final List<Drawable> children = Lists.newArrayList();
+
+		private SurfaceRenderer childRenderer;
+
+		// used only while some children can't be cached, so rest of them can still be compiled
+		private SurfaceRenderer.SurfaceCache childCache;
+
+		// opacity compiled into lists of child cache
+		private float childCacheOpacity;
+
+		private Group() {}
+
+		public Group(short x, short y) {
+			super(x, y);
+		}
+
+		@SideOnly(Side.CLIENT)
+		void clearChildren() {
+			children.clear();
+			if (childCache != null) childCache.invalidate();
+		}
+
+		@SideOnly(Side.CLIENT)
+		void invalidateChild(Drawable child) {
+			if (childCache != null) childCache.invalidate(child);
+		}
+
+		@SideOnly(Side.CLIENT)
+		void addChild(Drawable child) {
+			children.add(child);
+		}
+
+		@SideOnly(Side.CLIENT)
+		List<Drawable> getChildren() {
+			return children;
+		}
+
+		@Override
+		@SideOnly(Side.CLIENT)
+		public void update(float partialTicks, float opacity) {
+			super.update(partialTicks, opacity);
+
+			// children may prepare display lists with colors, so opacity must be same as during drawing
+			final float childOpacity = this.opacity * opacity;
+			for (Drawable child : children)
+				child.update(partialTicks, childOpacity);
+		}
+
+		@Override
+		@SideOnly(Side.CLIENT)
+		public boolean isCacheable() {
+			if (!super.isCacheable()) return false;
+
+			for (Drawable child : children)
+				if (!child.isCacheable()) return false;
+
+			return true;
+		}
+
+		@Override
+		@SideOnly(Side.CLIENT)
+		protected void drawContents(float partialTicks, float opacity) {
+			if (children.isEmpty()) return;
+			if (childRenderer == null) childRenderer = new SurfaceRenderer();
+
+			GL11.glScalef(scale, scale, scale);
+			final float childOpacity = this.opacity * opacity;
+
+			// cacheable group is drawn while its segment is compiled, so children can't compile own lists. Same when group itself is animated
+			if (isCacheable() || !super.isCacheable()) {
+				childRenderer.renderDrawables(children, partialTicks, childOpacity);
+				return;
+			}
+
+			if (childCache == null) childCache = new SurfaceRenderer.SurfaceCache();
+			if (childCacheOpacity != childOpacity) {
+				childCache.invalidate();
+				childCacheOpacity = childOpacity;
+			}
+
+			if (!childCache.isValid()) childCache.buildSegments(children);
+			childRenderer.renderCached(childCache, partialTicks, childOpacity);
+		}
+
+		@Override
+		@SideOnly(Side.CLIENT)
+		public void releaseResources() {
+			if (childCache != null) childCache.dispose();
+		}
+
+		// area of group is not known, so it's treated as overlapping everything
+		@Override
+		@SideOnly(Side.CLIENT)
+		public boolean isBounded() {
+			return false;
+		}
+
+		@Override
+		@SideOnly(Side.CLIENT)
+		protected float calculateDrawWidth() {
+			return 0;
+		}
+
+		@Override
+		@SideOnly(Side.CLIENT)
+		protected float calculateDrawHeight() {
+			return 0;
+		}
+
+		@Override
+		public Type getTypeEnum() {
+			return Type.GROUP;
+		}
+	}
+
 	@Override
 	public int getType() {
 		return getTypeEnum().ordinal();
@@ -425,6 +939,13 @@ public abstract class Drawable implements IPropertyCallback, IStructureContainer
 		return type.create();
 	}
 
+	/**
+	 * @return type name in same format as returned by {@code getType()}
+	 */
+	public static String normalizeTypeName(String name) {
+		return Type.fromName(name).name().toLowerCase();
+	}
+
 	@LuaCallable(returnTypes = LuaReturnType.STRING, name = "getType", description = "Get object type")
 	public String getTypeName() {
 		return getTypeEnum().name().toLowerCase();
@@ -434,7 +955,7 @@ public abstract class Drawable implements IPropertyCallback, IStructureContainer
 	public void delete() {
 		Preconditions.checkState(!deleted, "Object is already deleted");
 		Preconditions.checkState(owner != null, "Invalid side");
-		owner.removeContainer(containerId);
+		owner.removeDrawable(containerId);
 		deleted = true;
 	}
 
@@ -449,38 +970,159 @@ public abstract class Drawable implements IPropertyCallback, IStructureContainer
 		Preconditions.checkState(!deleted, "Object is already deleted");
 		Preconditions.checkState(owner != null, "Invalid side");
 
-		ElementField fieldWrapper = fields.get(field);
-		Preconditions.checkState(fieldWrapper != null, "LOGIC FAIL. BLAME MOD DEVS");
-		owner.markElementModified(fieldWrapper.elementId);
-		fieldWrapper.set(value);
+		DrawableElement fieldWrapper = getElement(field);
+		synchronized (owner) {
+			if (fieldWrapper.slot == GROUP_SLOT) owner.checkGroup(this, DrawableElement.toNumber(value).intValue());
+			if (fieldWrapper.set(value)) owner.markModified(fieldWrapper);
+		}
 	}
 
 	@Override
 	public Object getField(Field field) {
 		Preconditions.checkState(!deleted, "Object is already deleted");
 
-		ElementField fieldWrapper = fields.get(field);
-		Preconditions.checkState(fieldWrapper != null, "LOGIC FAIL. BLAME MOD DEVS");
-		return fieldWrapper.get();
+		return getElement(field).get();
 	}
 
-	@Override
-	public List<ElementField> createElements() {
-		List<ElementField> result = Lists.newArrayList();
-		for (Field field : getClass().getFields()) {
-			field.setAccessible(true);
-			if (!field.isAnnotationPresent(CallbackProperty.class)) continue;
+	private DrawableElement getElement(Field field) {
+		Preconditions.checkState(elements != null, "LOGIC FAIL. BLAME MOD DEVS");
+		return elements[schema.getSlot(field)];
+	}
+
+	/**
+	 * Creates new, unattached object from Lua table. Table must contain {@code type} key with one of values returned by {@code getType()}, all other keys are treated as property names
+	 */
+	public static Drawable createFromSpec(Map<?, ?> spec) {
+		Preconditions.checkNotNull(spec, "Missing object description");
+		final Object typeName = spec.get(SPEC_TYPE);
+		Preconditions.checkArgument(typeName instanceof String, "Missing object type");
+
+		final Drawable result = Type.fromName((String)typeName).create();
+		for (Map.Entry<?, ?> e : spec.entrySet()) {
+			final Object key = e.getKey();
+			if (SPEC_TYPE.equals(key)) continue;
+			result.getElement(key).set(e.getValue());
+		}
+
+		result.onCreatedFromSpec();
+		return result;
+	}
+
+	/**
+	 * Called after all properties from spec were set, so object can apply same defaults as its constructor
+	 */
+	protected void onCreatedFromSpec() {}
+
+	/**
+	 * Resolves property name received from Lua, so read-only properties are rejected
+	 */
+	private DrawableElement getElement(Object name) {
+		Preconditions.checkArgument(name instanceof String, "Invalid property name: %s", name);
+		final int slot = schema.getSlot((String)name);
+		Preconditions.checkArgument(!schema.isReadOnly(slot), "Property %s is read-only", name);
+		return getElements()[slot];
+	}
+
+	@LuaCallable(description = "Set multiple properties at once. Table keys are property names (like 'x' or 'color')")
+	public void setProperties(@Arg(name = "properties", description = "Table with new property values", type = LuaArgType.TABLE) Map<?, ?> properties) {
+		Preconditions.checkState(!deleted, "Object is already deleted");
+		Preconditions.checkState(owner != null, "Invalid side");
+
+		applyProperties(properties, null, null);
+	}
 
-			ElementField fieldWrapper = new ElementField(this, field);
-			result.add(fieldWrapper);
-			fields.put(field, fieldWrapper);
+	@LuaCallable(description = "Change multiple properties at once. Numeric values will be smoothly changed by client over given time")
+	public void animate(
+			@Arg(name = "properties", description = "Table with target property values", type = LuaArgType.TABLE) Map<?, ?> properties,
+			@Arg(name = "duration", description = "Duration of animation, in ticks") int duration,
+			@Optionals @Arg(name = "easing", description = "One of 'linear' (default), 'ease_in', 'ease_out', 'ease_in_out'") String easing) {
+		Preconditions.checkState(!deleted, "Object is already deleted");
+		Preconditions.checkState(owner != null, "Invalid side");
+		Preconditions.checkArgument(duration >= 0 && duration <= Short.MAX_VALUE, "Invalid duration: %s", duration);
+		final DrawableAnimator.Easing easingType = easing != null? DrawableAnimator.Easing.fromNameChecked(easing) : DrawableAnimator.Easing.LINEAR;
+
+		applyProperties(properties, (short)duration, easingType.name().toLowerCase());
+	}
+
+	private void applyProperties(Map<?, ?> properties, Short animationDuration, String animationEasing) {
+		// resolve everything first, so typo in last name does not leave object half-modified
+		final List<DrawableElement> elements = Lists.newArrayListWithCapacity(properties.size());
+		final List<Object> values = Lists.newArrayListWithCapacity(properties.size());
+		for (Map.Entry<?, ?> e : properties.entrySet()) {
+			elements.add(getElement(e.getKey()));
+			values.add(e.getValue());
 		}
 
+		synchronized (owner) {
+			for (int i = 0; i < elements.size(); i++)
+				if (elements.get(i).slot == GROUP_SLOT) owner.checkGroup(this, DrawableElement.toNumber(values.get(i)).intValue());
+
+			if (animationDuration != null) {
+				final DrawableElement durationElement = getElements()[DURATION_SLOT];
+				durationElement.set(animationDuration);
+				// always resent, since it's used as animation trigger by client
+				owner.markModified(durationElement);
+
+				final DrawableElement easingElement = getElements()[EASING_SLOT];
+				if (easingElement.set(animationEasing)) owner.markModified(easingElement);
+			}
+
+			for (int i = 0; i < elements.size(); i++) {
+				final DrawableElement element = elements.get(i);
+				if (element.set(values.get(i))) owner.markModified(element);
+			}
+		}
+	}
+
+	/**
+	 * Called by owner (with lock held), when group of this object is deleted
+	 */
+	void clearGroup() {
+		final DrawableElement element = getElements()[GROUP_SLOT];
+		if (element.set(0)) owner.markModified(element);
+	}
+
+	void onElementRead(DrawableElement element, double previousValue) {
+		// duration is first in schema, so animator is ready before any animated value from same update is read
+		if (animator == null && element.slot == DURATION_SLOT && animationDuration != 0) animator = new DrawableAnimator(getElements(), DURATION_SLOT, isDisplayed);
+		if (animator != null) animator.onElementRead(element, previousValue);
+		isSizeValid = false;
+		onElementChanged(element);
+		if (elementListener != null) elementListener.onElementChanged(this, element);
+	}
+
+	/**
+	 * Called on client, after property value was received from server
+	 */
+	protected void onElementChanged(DrawableElement element) {}
+
+	public void setElementListener(IElementListener elementListener) {
+		this.elementListener = elementListener;
+	}
+
+	@LuaCallable(returnTypes = LuaReturnType.TABLE, description = "Get values of all properties")
+	public Map<String, Object> getProperties() {
+		Preconditions.checkState(!deleted, "Object is already deleted");
+
+		final Map<String, Object> result = Maps.newHashMap();
+		for (DrawableElement element : getElements())
+			result.put(schema.getField(element.slot).getName(), element.get());
+
 		return result;
 	}
 
+	private DrawableElement[] getElements() {
+		if (elements == null) elements = schema.createElements(this);
+		return elements;
+	}
+
 	@Override
-	public void onElementAdded(ElementField element, int index) {
+	public List<DrawableElement> createElements() {
+		return Arrays.asList(getElements());
+	}
+
+	@Override
+	public void onElementAdded(DrawableElement element, int index) {
 		element.elementId = index;
 	}
 
@@ -488,6 +1130,10 @@ public abstract class Drawable implements IPropertyCallback, IStructureContainer
 		this.deleted = true;
 	}
 
+	public boolean isDeleted() {
+		return deleted;
+	}
+
 	public void setOwner(SurfaceServer owner) {
 		this.owner = owner;
 	}
@@ -0,0 +1,189 @@
+package openperipheral.addons.glasses;
+
+import openperipheral.addons.glasses.DrawableElement.InterpolatedElement;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Preconditions;
+
+/**
+ * Client-side interpolation of numeric drawable properties.
+ * Server sends only final values, together with animation duration. Values received in same update are then smoothly changed from their previous state.
+ */
+public class DrawableAnimator {
+
+	public enum Easing {
+		LINEAR {
+			@Override
+			public double apply(double t) {
+				return t;
+			}
+		},
+		EASE_IN {
+			@Override
+			public double apply(double t) {
+				return t * t;
+			}
+		},
+		EASE_OUT {
+			@Override
+			public double apply(double t) {
+				return t * (2 - t);
+			}
+		},
+		EASE_IN_OUT {
+			@Override
+			public double apply(double t) {
+				return t < 0.5? 2 * t * t : -1 + (4 - 2 * t) * t;
+			}
+		};
+
+		public abstract double apply(double t);
+
+		public static Easing fromName(String name) {
+			if (name != null) {
+				for (Easing easing : values())
+					if (easing.name().equalsIgnoreCase(name)) return easing;
+			}
+
+			return null;
+		}
+
+		public static Easing fromNameChecked(String name) {
+			Easing result = fromName(name);
+			Preconditions.checkArgument(result != null, "Unknown easing: %s", name);
+			return result;
+		}
+	}
+
+	private final DrawableElement[] elements;
+
+	private final int durationSlot;
+
+	private final boolean[] pending;
+
+	private final double[] previous;
+
+	private final boolean[] active;
+
+	private final double[] from;
+
+	private final double[] to;
+
+	private final double[] start;
+
+	private final float[] length;
+
+	private final Easing[] easing;
+
+	private boolean hasPending;
+
+	private boolean animationRequested;
+
+	private boolean isAnimating;
+
+	private boolean initialized;
+
+	/**
+	 * @param initialized
+	 *            true if object was already displayed, so values received with animation request have something to animate from
+	 */
+	public DrawableAnimator(DrawableElement[] elements, int durationSlot, boolean initialized) {
+		this.elements = elements;
+		this.durationSlot = durationSlot;
+		this.initialized = initialized;
+
+		final int size = elements.length;
+		this.pending = new boolean[size];
+		this.previous = new double[size];
+		this.active = new boolean[size];
+		this.from = new double[size];
+		this.to = new double[size];
+		this.start = new double[size];
+		this.length = new float[size];
+		this.easing = new Easing[size];
+	}
+
+	public void onElementRead(DrawableElement element, double previousValue) {
+		final int slot = element.slot;
+		if (slot == durationSlot) {
+			// duration is first in schema, so it's read before values of same update
+			// objects that were never displayed are not animated, even if created with animation settings
+			animationRequested = initialized && ((InterpolatedElement)element).getNumber() > 0;
+		} else if (element instanceof InterpolatedElement) {
+			if (animationRequested) {
+				// first value in batch is starting point
+				if (!pending[slot]) {
+					pending[slot] = true;
+					previous[slot] = previousValue;
+				}
+				hasPending = true;
+			} else {
+				// plain change, so object stays cacheable. It also replaces running animation of this value
+				active[slot] = false;
+			}
+		}
+	}
+
+	public boolean isAnimating() {
+		return isAnimating || hasPending;
+	}
+
+	/**
+	 * Writes current values to animated fields.
+	 *
+	 * @param time
+	 *            current time in ticks (including partial ticks)
+	 */
+	public void update(double time, int duration, String easingName) {
+		if (hasPending) startPending(time, duration, easingName);
+		animationRequested = false;
+		initialized = true;
+
+		if (!isAnimating) return;
+
+		boolean stillAnimating = false;
+		for (int slot = 0; slot < elements.length; slot++) {
+			if (!active[slot]) continue;
+
+			final double progress = (time - start[slot]) / length[slot];
+			final double value;
+			if (progress >= 1) {
+				value = to[slot];
+				active[slot] = false;
+			} else {
+				value = from[slot] + (to[slot] - from[slot]) * easing[slot].apply(Math.max(progress, 0));
+				stillAnimating = true;
+			}
+
+			((InterpolatedElement)elements[slot]).setNumber(value);
+		}
+
+		isAnimating = stillAnimating;
+	}
+
+	private void startPending(double time, int duration, String easingName) {
+		final boolean animate = initialized && animationRequested && duration > 0;
+		final Easing easing = animate? Objects.firstNonNull(Easing.fromName(easingName), Easing.LINEAR) : null;
+
+		for (int slot = 0; slot < elements.length; slot++) {
+			if (!pending[slot]) continue;
+			pending[slot] = false;
+
+			if (animate) {
+				final InterpolatedElement element = (InterpolatedElement)elements[slot];
+				from[slot] = previous[slot];
+				to[slot] = element.getNumber();
+				start[slot] = time;
+				length[slot] = duration;
+				this.easing[slot] = easing;
+				active[slot] = true;
+				element.setNumber(from[slot]);
+				isAnimating = true;
+			} else {
+				active[slot] = false;
+			}
+		}
+
+		hasPending = false;
+	}
+}
@@ -0,0 +1,384 @@
+package openperipheral.addons.glasses;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.lang.reflect.Field;
+
+import openmods.structured.IStructureElement;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Throwables;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+
+/**
+ * Structure element bound to single drawable property.
+ * Subclasses are specialized for field type, so values never leave primitive form on (de)serialization or typed access.
+ */
+public abstract class DrawableElement implements IStructureElement {
+
+	private static final Interner<String> STRINGS = Interners.newWeakInterner();
+
+	public int elementId;
+
+	public final int slot;
+
+	protected final Drawable target;
+
+	protected final Field field;
+
+	protected DrawableElement(Drawable target, Field field, int slot) {
+		this.target = target;
+		this.field = field;
+		this.slot = slot;
+	}
+
+	public static DrawableElement create(Drawable target, Field field, int slot) {
+		final Class<?> type = field.getType();
+		if (type == short.class) return new ShortElement(target, field, slot);
+		if (type == int.class) return new IntElement(target, field, slot);
+		if (type == float.class) return new FloatElement(target, field, slot);
+		if (type == double.class) return new DoubleElement(target, field, slot);
+		if (type == String.class) return new StringElement(target, field, slot);
+		if (type == boolean.class) return new BooleanElement(target, field, slot);
+		throw new IllegalArgumentException("Unsupported field type: " + field);
+	}
+
+	public String getName() {
+		return field.getName();
+	}
+
+	public abstract Object get();
+
+	/**
+	 * @return true if value was changed
+	 */
+	public abstract boolean set(Object value);
+
+	protected static Number toNumber(Object value) {
+		if (value instanceof Number) return (Number)value;
+		throw new IllegalArgumentException("Expected number, got " + value);
+	}
+
+	/**
+	 * Base for elements that can be smoothly changed by client-side animation
+	 */
+	public abstract static class InterpolatedElement extends DrawableElement {
+		protected InterpolatedElement(Drawable target, Field field, int slot) {
+			super(target, field, slot);
+		}
+
+		public abstract double getNumber();
+
+		public abstract void setNumber(double value);
+	}
+
+	protected static RuntimeException fieldAccessFail(Throwable t) {
+		return Throwables.propagate(t);
+	}
+
+	public static class ShortElement extends InterpolatedElement {
+		public ShortElement(Drawable target, Field field, int slot) {
+			super(target, field, slot);
+		}
+
+		public short getShort() {
+			try {
+				return field.getShort(target);
+			} catch (IllegalAccessException e) {
+				throw fieldAccessFail(e);
+			}
+		}
+
+		public boolean setShort(short value) {
+			try {
+				if (field.getShort(target) == value) return false;
+				field.setShort(target, value);
+				return true;
+			} catch (IllegalAccessException e) {
+				throw fieldAccessFail(e);
+			}
+		}
+
+		@Override
+		public Object get() {
+			return getShort();
+		}
+
+		@Override
+		public boolean set(Object value) {
+			return setShort(toNumber(value).shortValue());
+		}
+
+		@Override
+		public void writeToStream(DataOutput output) throws IOException {
+			PayloadEncoding.writeSignedVarInt(output, getShort());
+		}
+
+		@Override
+		public double getNumber() {
+			return getShort();
+		}
+
+		@Override
+		public void setNumber(double value) {
+			setShort((short)value);
+		}
+
+		@Override
+		public void readFromStream(DataInput input) throws IOException {
+			final short previous = getShort();
+			setShort((short)PayloadEncoding.readSignedVarInt(input));
+			target.onElementRead(this, previous);
+		}
+	}
+
+	public static class IntElement extends DrawableElement {
+		public IntElement(Drawable target, Field field, int slot) {
+			super(target, field, slot);
+		}
+
+		public int getInt() {
+			try {
+				return field.getInt(target);
+			} catch (IllegalAccessException e) {
+				throw fieldAccessFail(e);
+			}
+		}
+
+		public boolean setInt(int value) {
+			try {
+				if (field.getInt(target) == value) return false;
+				field.setInt(target, value);
+				return true;
+			} catch (IllegalAccessException e) {
+				throw fieldAccessFail(e);
+			}
+		}
+
+		@Override
+		public Object get() {
+			return getInt();
+		}
+
+		@Override
+		public boolean set(Object value) {
+			return setInt(toNumber(value).intValue());
+		}
+
+		@Override
+		public void writeToStream(DataOutput output) throws IOException {
+			PayloadEncoding.writeSignedVarInt(output, getInt());
+		}
+
+		@Override
+		public void readFromStream(DataInput input) throws IOException {
+			setInt(PayloadEncoding.readSignedVarInt(input));
+			target.onElementRead(this, 0);
+		}
+	}
+
+	public static class FloatElement extends InterpolatedElement {
+		public FloatElement(Drawable target, Field field, int slot) {
+			super(target, field, slot);
+		}
+
+		public float getFloat() {
+			try {
+				return field.getFloat(target);
+			} catch (IllegalAccessException e) {
+				throw fieldAccessFail(e);
+			}
+		}
+
+		public boolean setFloat(float value) {
+			try {
+				if (field.getFloat(target) == value) return false;
+				field.setFloat(target, value);
+				return true;
+			} catch (IllegalAccessException e) {
+				throw fieldAccessFail(e);
+			}
+		}
+
+		@Override
+		public Object get() {
+			return getFloat();
+		}
+
+		@Override
+		public boolean set(Object value) {
+			return setFloat(toNumber(value).floatValue());
+		}
+
+		@Override
+		public void writeToStream(DataOutput output) throws IOException {
+			PayloadEncoding.writeFloat(output, getFloat());
+		}
+
+		@Override
+		public double getNumber() {
+			return getFloat();
+		}
+
+		@Override
+		public void setNumber(double value) {
+			setFloat((float)value);
+		}
+
+		@Override
+		public void readFromStream(DataInput input) throws IOException {
+			final float previous = getFloat();
+			setFloat(PayloadEncoding.readFloat(input));
+			target.onElementRead(this, previous);
+		}
+	}
+
+	public static class DoubleElement extends InterpolatedElement {
+		public DoubleElement(Drawable target, Field field, int slot) {
+			super(target, field, slot);
+		}
+
+		public double getDouble() {
+			try {
+				return field.getDouble(target);
+			} catch (IllegalAccessException e) {
+				throw fieldAccessFail(e);
+			}
+		}
+
+		public boolean setDouble(double value) {
+			try {
+				if (field.getDouble(target) == value) return false;
+				field.setDouble(target, value);
+				return true;
+			} catch (IllegalAccessException e) {
+				throw fieldAccessFail(e);
+			}
+		}
+
+		@Override
+		public Object get() {
+			return getDouble();
+		}
+
+		@Override
+		public boolean set(Object value) {
+			return setDouble(toNumber(value).doubleValue());
+		}
+
+		@Override
+		public void writeToStream(DataOutput output) throws IOException {
+			PayloadEncoding.writeDouble(output, getDouble());
+		}
+
+		@Override
+		public double getNumber() {
+			return getDouble();
+		}
+
+		@Override
+		public void setNumber(double value) {
+			setDouble((double)value);
+		}
+
+		@Override
+		public void readFromStream(DataInput input) throws IOException {
+			final double previous = getDouble();
+			setDouble(PayloadEncoding.readDouble(input));
+			target.onElementRead(this, previous);
+		}
+	}
+
+	public static class StringElement extends DrawableElement {
+		public StringElement(Drawable target, Field field, int slot) {
+			super(target, field, slot);
+		}
+
+		public String getString() {
+			try {
+				return (String)field.get(target);
+			} catch (IllegalAccessException e) {
+				throw fieldAccessFail(e);
+			}
+		}
+
+		public boolean setString(String value) {
+			try {
+				if (Objects.equal(field.get(target), value)) return false;
+				field.set(target, value != null? STRINGS.intern(value) : null);
+				return true;
+			} catch (IllegalAccessException e) {
+				throw fieldAccessFail(e);
+			}
+		}
+
+		@Override
+		public Object get() {
+			return getString();
+		}
+
+		@Override
+		public boolean set(Object value) {
+			return setString(value != null? value.toString() : null);
+		}
+
+		@Override
+		public void writeToStream(DataOutput output) throws IOException {
+			PayloadEncoding.writeString(output, getString());
+		}
+
+		@Override
+		public void readFromStream(DataInput input) throws IOException {
+			setString(PayloadEncoding.readString(input));
+			target.onElementRead(this, 0);
+		}
+	}
+
+	public static class BooleanElement extends DrawableElement {
+		public BooleanElement(Drawable target, Field field, int slot) {
+			super(target, field, slot);
+		}
+
+		public boolean getBoolean() {
+			try {
+				return field.getBoolean(target);
+			} catch (IllegalAccessException e) {
+				throw fieldAccessFail(e);
+			}
+		}
+
+		public boolean setBoolean(boolean value) {
+			try {
+				if (field.getBoolean(target) == value) return false;
+				field.setBoolean(target, value);
+				return true;
+			} catch (IllegalAccessException e) {
+				throw fieldAccessFail(e);
+			}
+		}
+
+		@Override
+		public Object get() {
+			return getBoolean();
+		}
+
+		@Override
+		public boolean set(Object value) {
+			if (value instanceof Boolean) return setBoolean((Boolean)value);
+			throw new IllegalArgumentException("Expected boolean, got " + value);
+		}
+
+		@Override
+		public void writeToStream(DataOutput output) throws IOException {
+			output.writeBoolean(getBoolean());
+		}
+
+		@Override
+		public void readFromStream(DataInput input) throws IOException {
+			setBoolean(input.readBoolean());
+			target.onElementRead(this, 0);
+		}
+	}
+}
@@ -0,0 +1,49 @@
+package openperipheral.addons.glasses;
+
+import openperipheral.api.*;
+
+/**
+ * Lightweight reference to object on surface. Full object is only returned (and converted) when requested.
+ */
+@LuaObject
+@AdapterSourceName("glasses_handle")
+public class DrawableHandle {
+
+	private final SurfaceServer owner;
+
+	// ids are reused after deletion, so instance is kept to detect replaced objects
+	private final Drawable drawable;
+
+	private final int id;
+
+	private final String type;
+
+	public DrawableHandle(SurfaceServer owner, Drawable drawable) {
+		this.owner = owner;
+		this.drawable = drawable;
+		this.id = drawable.getId();
+		this.type = drawable.getTypeName();
+	}
+
+	@LuaCallable(returnTypes = LuaReturnType.NUMBER, description = "Get id of referenced object")
+	public int getId() {
+		return id;
+	}
+
+	@LuaCallable(returnTypes = LuaReturnType.STRING, description = "Get type of referenced object")
+	public String getType() {
+		return type;
+	}
+
+	@LuaCallable(returnTypes = LuaReturnType.BOOLEAN, description = "Check if referenced object still exists")
+	public boolean exists() {
+		synchronized (owner) {
+			return !drawable.isDeleted() && owner.getById(id) == drawable;
+		}
+	}
+
+	@LuaCallable(returnTypes = LuaReturnType.OBJECT, description = "Get referenced object or nil, if it was deleted")
+	public Drawable get() {
+		return exists()? drawable : null;
+	}
+}
@@ -0,0 +1,115 @@
+package openperipheral.addons.glasses;
+
+import java.lang.reflect.Field;
+import java.util.*;
+
+import openperipheral.api.CallbackProperty;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Immutable, ordered table of synchronized properties of single {@link Drawable} class.
+ * Calculated once per class and shared between server and client, so instances only need to keep array of elements, indexed by slot.
+ */
+public class DrawableSchema {
+
+	private static final Map<Class<?>, DrawableSchema> SCHEMAS = Maps.newConcurrentMap();
+
+	// order must be identical on both sides, while Class.getFields() gives no guarantees
+	private static final Comparator<Field> FIELD_ORDER = new Comparator<Field>() {
+		@Override
+		public int compare(Field o1, Field o2) {
+			int result = getDepth(o1.getDeclaringClass()) - getDepth(o2.getDeclaringClass());
+			return result != 0? result : o1.getName().compareTo(o2.getName());
+		}
+	};
+
+	private static int getDepth(Class<?> cls) {
+		int depth = 0;
+		while ((cls = cls.getSuperclass()) != null)
+			depth++;
+		return depth;
+	}
+
+	private final ImmutableList<Field> fields;
+
+	private final ImmutableMap<Field, Integer> slots;
+
+	private final ImmutableMap<String, Integer> slotsByName;
+
+	private final boolean[] readOnly;
+
+	private DrawableSchema(Class<?> cls) {
+		List<Field> fields = Lists.newArrayList();
+		for (Field field : cls.getFields()) {
+			if (!field.isAnnotationPresent(CallbackProperty.class)) continue;
+			field.setAccessible(true);
+			fields.add(field);
+		}
+
+		Collections.sort(fields, FIELD_ORDER);
+		this.fields = ImmutableList.copyOf(fields);
+
+		ImmutableMap.Builder<Field, Integer> slots = ImmutableMap.builder();
+		ImmutableMap.Builder<String, Integer> slotsByName = ImmutableMap.builder();
+		for (int i = 0; i < fields.size(); i++) {
+			final Field field = fields.get(i);
+			slots.put(field, i);
+			slotsByName.put(field.getName(), i);
+		}
+		this.slots = slots.build();
+		this.slotsByName = slotsByName.build();
+
+		this.readOnly = new boolean[fields.size()];
+		for (int i = 0; i < readOnly.length; i++)
+			readOnly[i] = fields.get(i).getAnnotation(CallbackProperty.class).readOnly();
+	}
+
+	public static DrawableSchema get(Class<? extends Drawable> cls) {
+		DrawableSchema schema = SCHEMAS.get(cls);
+		if (schema == null) {
+			schema = new DrawableSchema(cls);
+			SCHEMAS.put(cls, schema);
+		}
+
+		return schema;
+	}
+
+	public int size() {
+		return fields.size();
+	}
+
+	public Field getField(int slot) {
+		return fields.get(slot);
+	}
+
+	public int getSlot(Field field) {
+		Integer slot = slots.get(field);
+		Preconditions.checkArgument(slot != null, "Field %s is not part of schema", field);
+		return slot;
+	}
+
+	public int getSlot(String name) {
+		Integer slot = slotsByName.get(name);
+		Preconditions.checkArgument(slot != null, "Unknown property: %s", name);
+		return slot;
+	}
+
+	/**
+	 * @return true if property can't be set by Lua (but may still be changed internally)
+	 */
+	public boolean isReadOnly(int slot) {
+		return readOnly[slot];
+	}
+
+	public DrawableElement[] createElements(Drawable target) {
+		DrawableElement[] result = new DrawableElement[fields.size()];
+		for (int i = 0; i < result.length; i++)
+			result[i] = DrawableElement.create(target, fields.get(i), i);
+		return result;
+	}
+}
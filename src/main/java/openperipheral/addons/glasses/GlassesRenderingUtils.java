@@ -1,30 +1,104 @@
 package openperipheral.addons.glasses;
 
+import java.util.Map;
+import java.util.Queue;
+
+import net.minecraft.client.renderer.GLAllocation;
 import net.minecraft.client.renderer.Tessellator;
 import net.minecraft.util.IIcon;
 import openmods.Log;
 import openmods.utils.render.FontSizeChecker;
 
-import org.lwjgl.opengl.GL11;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Queues;
 
 public final class GlassesRenderingUtils {
 
-	public static void drawTexturedQuad(double x, double y, IIcon icon, float width, float height, float uMax, float vMax, float alpha) {
-		GL11.glPushMatrix();
-		GL11.glEnable(GL11.GL_BLEND);
-		GL11.glBlendFunc(GL11.GL_SRC_ALPHA, GL11.GL_ONE_MINUS_SRC_ALPHA);
-		Tessellator tessellator = Tessellator.instance;
-		tessellator.startDrawingQuads();
-		float textureU = icon.getMinU() + (icon.getMaxU() - icon.getMinU()) * uMax;
-		float textureV = icon.getMinV() + (icon.getMaxV() - icon.getMinV()) * vMax;
-		GL11.glColor4f(1f, 1f, 1f, alpha);
-		tessellator.addVertexWithUV(x + 0, y + height, 0D, icon.getMinU(), textureV);
-		tessellator.addVertexWithUV(x + width, y + height, 0D, textureU, textureV);
-		tessellator.addVertexWithUV(x + width, y + 0, 0D, textureU, icon.getMinV());
-		tessellator.addVertexWithUV(x + 0, y + 0, 0D, icon.getMinU(), icon.getMinV());
-		tessellator.draw();
-		GL11.glDisable(GL11.GL_BLEND);
-		GL11.glPopMatrix();
+	private static final Queue<Integer> releasedDisplayLists = Queues.newConcurrentLinkedQueue();
+
+	/**
+	 * Schedules deletion of display list. Can be called from any thread, lists are deleted on next {@link #deleteReleasedDisplayLists()}
+	 */
+	public static void releaseDisplayList(int list) {
+		releasedDisplayLists.add(list);
+	}
+
+	public static void deleteReleasedDisplayLists() {
+		Integer list;
+		while ((list = releasedDisplayLists.poll()) != null)
+			GLAllocation.deleteDisplayLists(list);
+	}
+
+	/**
+	 * Fills rectangle with copies of icon, clipping last row and column. Vertices are added to already started tessellator
+	 */
+	public static void addTiledQuad(Tessellator tessellator, double x, double y, double z, IIcon icon, float width, float height, float alpha) {
+		final int iconWidth = icon.getIconWidth();
+		final int iconHeight = icon.getIconHeight();
+
+		if (iconWidth <= 0 || iconHeight <= 0) return;
+
+		final float minU = icon.getMinU();
+		final float minV = icon.getMinV();
+		final float deltaU = icon.getMaxU() - minU;
+		final float deltaV = icon.getMaxV() - minV;
+
+		tessellator.setColorRGBA_F(1f, 1f, 1f, alpha);
+
+		for (float tileX = 0; tileX < width; tileX += iconWidth) {
+			// Draw whole or partial
+			final float tileWidth = Math.min(width - tileX, iconWidth);
+			final float maxU = minU + deltaU * (tileWidth / iconWidth);
+			final double left = x + tileX;
+			final double right = left + tileWidth;
+
+			for (float tileY = 0; tileY < height; tileY += iconHeight) {
+				final float tileHeight = Math.min(height - tileY, iconHeight);
+				final float maxV = minV + deltaV * (tileHeight / iconHeight);
+				final double top = y + tileY;
+				final double bottom = top + tileHeight;
+
+				tessellator.addVertexWithUV(left, bottom, z, minU, maxV);
+				tessellator.addVertexWithUV(right, bottom, z, maxU, maxV);
+				tessellator.addVertexWithUV(right, top, z, maxU, minV);
+				tessellator.addVertexWithUV(left, top, z, minU, minV);
+			}
+		}
+	}
+
+	private static final int FONT_HEIGHT = 9;
+
+	private static volatile Map<String, Object> fontMetrics;
+
+	public static Map<String, Object> getFontMetrics() {
+		Map<String, Object> result = fontMetrics;
+		if (result == null) {
+			Map<String, Integer> charWidths = Maps.newHashMap();
+			// printable Latin-1 characters (32-255)
+			for (char c = ' '; c < 256; c++) {
+				final String str = String.valueOf(c);
+				charWidths.put(str, getStringWidth(str));
+			}
+
+			result = ImmutableMap.<String, Object> of(
+					"charWidths", ImmutableMap.copyOf(charWidths),
+					"lineHeight", FONT_HEIGHT);
+			fontMetrics = result;
+		}
+
+		return result;
+	}
+
+	public static Map<Object, Integer> getStringWidths(Map<?, ?> strings) {
+		Map<Object, Integer> result = Maps.newHashMap();
+		for (Map.Entry<?, ?> e : strings.entrySet()) {
+			final Object value = e.getValue();
+			Preconditions.checkArgument(value instanceof String, "Expected string under key %s, got %s", e.getKey(), value);
+			result.put(e.getKey(), getStringWidth((String)value));
+		}
+		return result;
 	}
 
 	public static int getStringWidth(String str) {
@@ -1,5 +1,6 @@
 package openperipheral.addons.glasses;
 
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -23,6 +24,30 @@ public interface IDrawableContainer {
 	@LuaCallable(returnTypes = LuaReturnType.TABLE, description = "Get all objects on the screen")
 	public Map<Integer, Drawable> getAllObjects();
 
+	@LuaCallable(returnTypes = LuaReturnType.TABLE, description = "Get lightweight handles of all objects on the screen. Full object can be retrieved with handle.get()")
+	public Map<Integer, DrawableHandle> getAllHandles();
+
+	@LuaCallable(returnTypes = LuaReturnType.TABLE, description = "Get handles of all objects with given type")
+	public Map<Integer, DrawableHandle> getObjectsByType(
+			@Arg(name = "type", description = "Object type, as returned by getType()") String type
+			);
+
+	@LuaCallable(returnTypes = LuaReturnType.TABLE, description = "Add multiple objects to the screen. Returns list of ids, in same order as descriptions")
+	public List<Integer> addObjects(
+			@Arg(name = "objects", description = "List of object descriptions, like {type='box', x=1, y=2, width=10, height=10}", type = LuaArgType.TABLE) Map<?, ?> specs
+			);
+
+	@LuaCallable(description = "Remove multiple objects from the screen")
+	public void deleteObjects(
+			@Arg(name = "ids", description = "List of object ids", type = LuaArgType.TABLE) Map<?, ?> ids
+			);
+
+	@LuaCallable(returnTypes = LuaReturnType.OBJECT, description = "Add a new group. Objects are added to group by setting their 'group' property to group id")
+	public Drawable addGroup(
+			@Arg(name = "x", description = "The x position from the top left") short x,
+			@Arg(name = "y", description = "The y position from the top left") short y
+			);
+
 	@LuaCallable(returnTypes = LuaReturnType.OBJECT, description = "Add a new text object to the screen")
 	public Drawable addText(
 			@Arg(name = "x", description = "The x position from the top left") short x,
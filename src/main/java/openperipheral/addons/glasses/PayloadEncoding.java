@@ -0,0 +1,180 @@
+package openperipheral.addons.glasses;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Compact encoding of drawable values in {@link TerminalEvent.TerminalDataEvent} payloads.
+ * Integers are written as variable-length numbers, so small values take single byte. Reals are never longer than raw value, unless they are huge or not finite.
+ * Strings are written once per payload, every repeated occurrence is replaced by index in string table.
+ */
+public final class PayloadEncoding {
+
+	private static final int STRING_NULL = 0;
+	private static final int STRING_LITERAL = 1;
+	private static final int STRING_REF_OFFSET = 2;
+
+	// Markers use first byte of raw value that is only possible for huge numbers, infinities and NaNs (exponent bits almost all set).
+	// Other values are written in raw form without any prefix
+	private static final int REAL_INTEGRAL = 0xFF;
+	private static final int REAL_FLOAT = 0xFE;
+	private static final int REAL_ESCAPED = 0x7F;
+
+	// bigger integral values are shorter as float
+	private static final int MAX_INTEGRAL = 1 << 20;
+
+	private static class StringTable {
+		private final Map<String, Integer> ids = Maps.newHashMap();
+		private final List<String> strings = Lists.newArrayList();
+	}
+
+	private static final ThreadLocal<StringTable> stringTable = new ThreadLocal<StringTable>();
+
+	/**
+	 * Starts string table for payload encoded or decoded on current thread. Must be always paired with {@link #endPayload()}.
+	 * Scope must cover writing and reading of element values, which (on client) happens only when commands are interpreted.
+	 */
+	public static void beginPayload() {
+		Preconditions.checkState(stringTable.get() == null, "Payload already started");
+		stringTable.set(new StringTable());
+	}
+
+	public static void endPayload() {
+		stringTable.remove();
+	}
+
+	public static void writeVarInt(DataOutput output, int value) throws IOException {
+		while ((value & ~0x7F) != 0) {
+			output.writeByte((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		output.writeByte(value);
+	}
+
+	public static int readVarInt(DataInput input) throws IOException {
+		int result = 0;
+		int shift = 0;
+		int b;
+		do {
+			Preconditions.checkState(shift < 35, "Malformed varint");
+			b = input.readUnsignedByte();
+			result |= (b & 0x7F) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+
+		return result;
+	}
+
+	public static void writeSignedVarInt(DataOutput output, int value) throws IOException {
+		writeVarInt(output, (value << 1) ^ (value >> 31));
+	}
+
+	public static int readSignedVarInt(DataInput input) throws IOException {
+		final int value = readVarInt(input);
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	private static boolean isSmallIntegral(double value) {
+		return value == (int)value && Math.abs(value) < MAX_INTEGRAL;
+	}
+
+	private static boolean isReservedFloat(int firstByte) {
+		return firstByte == REAL_INTEGRAL || firstByte == REAL_ESCAPED;
+	}
+
+	private static boolean isReservedDouble(int firstByte) {
+		return firstByte == REAL_INTEGRAL || firstByte == REAL_FLOAT || firstByte == REAL_ESCAPED;
+	}
+
+	public static void writeFloat(DataOutput output, float value) throws IOException {
+		if (isSmallIntegral(value)) {
+			output.writeByte(REAL_INTEGRAL);
+			writeSignedVarInt(output, (int)value);
+		} else {
+			final int bits = Float.floatToRawIntBits(value);
+			if (isReservedFloat(bits >>> 24)) output.writeByte(REAL_ESCAPED);
+			output.writeInt(bits);
+		}
+	}
+
+	public static float readFloat(DataInput input) throws IOException {
+		final int firstByte = input.readUnsignedByte();
+		if (firstByte == REAL_INTEGRAL) return readSignedVarInt(input);
+		if (firstByte == REAL_ESCAPED) return input.readFloat();
+
+		final int bits = (firstByte << 24) | (input.readUnsignedShort() << 8) | input.readUnsignedByte();
+		return Float.intBitsToFloat(bits);
+	}
+
+	public static void writeDouble(DataOutput output, double value) throws IOException {
+		if (isSmallIntegral(value)) {
+			output.writeByte(REAL_INTEGRAL);
+			writeSignedVarInt(output, (int)value);
+		} else if ((float)value == value) {
+			output.writeByte(REAL_FLOAT);
+			output.writeFloat((float)value);
+		} else {
+			final long bits = Double.doubleToRawLongBits(value);
+			if (isReservedDouble((int)(bits >>> 56))) output.writeByte(REAL_ESCAPED);
+			output.writeLong(bits);
+		}
+	}
+
+	public static double readDouble(DataInput input) throws IOException {
+		final int firstByte = input.readUnsignedByte();
+		if (firstByte == REAL_INTEGRAL) return readSignedVarInt(input);
+		if (firstByte == REAL_FLOAT) return input.readFloat();
+		if (firstByte == REAL_ESCAPED) return input.readDouble();
+
+		long bits = firstByte;
+		for (int i = 0; i < 7; i++)
+			bits = (bits << 8) | input.readUnsignedByte();
+		return Double.longBitsToDouble(bits);
+	}
+
+	public static void writeString(DataOutput output, String value) throws IOException {
+		if (value == null) {
+			writeVarInt(output, STRING_NULL);
+			return;
+		}
+
+		final StringTable table = stringTable.get();
+		if (table != null) {
+			final Integer id = table.ids.get(value);
+			if (id != null) {
+				writeVarInt(output, id + STRING_REF_OFFSET);
+				return;
+			}
+
+			table.ids.put(value, table.strings.size());
+			table.strings.add(value);
+		}
+
+		writeVarInt(output, STRING_LITERAL);
+		output.writeUTF(value);
+	}
+
+	public static String readString(DataInput input) throws IOException {
+		final int tag = readVarInt(input);
+		if (tag == STRING_NULL) return null;
+
+		final StringTable table = stringTable.get();
+		if (tag == STRING_LITERAL) {
+			final String value = input.readUTF();
+			if (table != null) table.strings.add(value);
+			return value;
+		}
+
+		Preconditions.checkState(table != null, "String reference outside of payload");
+		final int id = tag - STRING_REF_OFFSET;
+		Preconditions.checkState(id < table.strings.size(), "Invalid string reference: %s", id);
+		return table.strings.get(id);
+	}
+}
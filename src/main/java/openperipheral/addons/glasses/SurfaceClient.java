@@ -1,24 +1,51 @@
 package openperipheral.addons.glasses;
 
-import java.lang.reflect.Field;
-import java.util.Iterator;
-import java.util.List;
+import java.util.*;
 
 import openmods.structured.*;
 import openperipheral.addons.glasses.SurfaceClient.DrawableWrapper;
+import openperipheral.addons.glasses.TerminalEvent.TerminalDataEvent;
 import openperipheral.addons.glasses.TerminalEvent.TerminalResetEvent;
-import openperipheral.api.CallbackProperty;
 
-import com.google.common.collect.Lists;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Sets;
 
-public class SurfaceClient extends StructuredDataSlave<DrawableWrapper, ElementField> implements Iterable<Drawable> {
+public class SurfaceClient extends StructuredDataSlave<DrawableWrapper, DrawableElement> implements Iterable<Drawable> {
 
-	public static class DrawableWrapper implements IStructureContainer<ElementField> {
+	// base class fields are first in every schema, so their slots are same for all types
+	private static final int Z_SLOT = DrawableSchema.get(Drawable.class).getSlot("z");
+
+	private static final int GROUP_SLOT = DrawableSchema.get(Drawable.class).getSlot("group");
+
+	private static final int VISIBLE_SLOT = DrawableSchema.get(Drawable.class).getSlot("visible");
+
+	public static class DrawableWrapper implements IStructureContainer<DrawableElement>, Drawable.IElementListener {
 		public int containerId;
 		public final Drawable target;
 
-		public DrawableWrapper(Drawable target) {
+		private final SurfaceClient owner;
+
+		// creation order, used to make every entry in render order unique
+		private final int serial;
+
+		// z value under which this object is currently stored in render order
+		private short sortZ;
+
+		public DrawableWrapper(SurfaceClient owner, Drawable target, int containerId, int serial) {
+			this.owner = owner;
 			this.target = target;
+			this.containerId = containerId;
+			this.serial = serial;
+		}
+
+		@Override
+		public void onElementChanged(Drawable drawable, DrawableElement element) {
+			final int slot = element.slot;
+			if (slot == Z_SLOT) owner.onZChanged(this);
+
+			// these change order or membership of render segments
+			if (slot == Z_SLOT || slot == GROUP_SLOT || slot == VISIBLE_SLOT) owner.renderCache.invalidate();
+			else owner.renderCache.invalidate(drawable);
 		}
 
 		@Override
@@ -27,64 +54,193 @@ public class SurfaceClient extends StructuredDataSlave<DrawableWrapper, ElementF
 		}
 
 		@Override
-		public List<ElementField> createElements() {
-			List<ElementField> result = Lists.newArrayList();
-			for (Field field : target.getClass().getFields()) {
-				field.setAccessible(true);
-				if (!field.isAnnotationPresent(CallbackProperty.class)) continue;
-				result.add(new ElementField(target, field));
-			}
-
-			return result;
+		public List<DrawableElement> createElements() {
+			return target.createElements();
 		}
 
 		@Override
-		public void onElementAdded(ElementField element, int index) {
-			element.elementId = index;
+		public void onElementAdded(DrawableElement element, int index) {
+			target.onElementAdded(element, index);
 		}
 	}
 
-	private static final IStructureContainerFactory<DrawableWrapper> FACTORY = new IStructureContainerFactory<DrawableWrapper>() {
+	private static final Comparator<DrawableWrapper> RENDER_ORDER = new Comparator<DrawableWrapper>() {
+		@Override
+		public int compare(DrawableWrapper o1, DrawableWrapper o2) {
+			if (o1.sortZ != o2.sortZ) return o1.sortZ < o2.sortZ? -1 : 1;
+			if (o1.containerId != o2.containerId) return o1.containerId < o2.containerId? -1 : 1;
+			return o1.serial < o2.serial? -1 : (o1.serial == o2.serial? 0 : 1);
+		}
+	};
+
+	private static class WrapperFactory implements IStructureContainerFactory<DrawableWrapper> {
+		private SurfaceClient owner;
 
 		@Override
 		public DrawableWrapper createContainer(int containerId, int type) {
 			Drawable newDrawable = Drawable.createFromTypeId(containerId, type);
-			return new DrawableWrapper(newDrawable);
+			DrawableWrapper wrapper = new DrawableWrapper(owner, newDrawable, containerId, owner.nextSerial++);
+			owner.addToRenderOrder(wrapper);
+			return wrapper;
 		}
-	};
+	}
 
 	public final long terminalId;
 	public final boolean isPrivate;
 
+	public final SurfaceRenderer.SurfaceCache renderCache = new SurfaceRenderer.SurfaceCache();
+
+	/**
+	 * Objects sorted by (z, id). Removed objects are skipped during iteration and purged after next update
+	 */
+	private final SortedSet<DrawableWrapper> renderOrder = Sets.newTreeSet(RENDER_ORDER);
+
+	private int nextSerial;
+
+	private static final long RESYNC_RETRY_DELAY = 1000;
+
+	// sequence number of last applied update, -1 if contents are unknown
+	private int lastSequence = -1;
+
+	// update that failed consistency check last time
+	private int failedSequence = -1;
+
+	private boolean isConsistencyCheckFailed;
+
+	private boolean isAwaitingResync;
+
+	private long lastResyncRequest;
+
 	public SurfaceClient(long terminalId, boolean isPrivate) {
-		super(FACTORY);
+		this(new WrapperFactory(), terminalId, isPrivate);
+	}
+
+	private SurfaceClient(WrapperFactory factory, long terminalId, boolean isPrivate) {
+		super(factory);
+		factory.owner = this;
 		this.terminalId = terminalId;
 		this.isPrivate = isPrivate;
 	}
 
+	private void addToRenderOrder(DrawableWrapper wrapper) {
+		wrapper.sortZ = wrapper.target.z;
+		wrapper.target.setElementListener(wrapper);
+		renderOrder.add(wrapper);
+		renderCache.invalidate();
+	}
+
+	private void onZChanged(DrawableWrapper wrapper) {
+		// must be removed with old key, otherwise tree will not find it
+		renderOrder.remove(wrapper);
+		wrapper.sortZ = wrapper.target.z;
+		renderOrder.add(wrapper);
+	}
+
+	/**
+	 * @return object with given id (as returned by {@code getId()}) or null
+	 */
+	public Drawable getDrawable(int id) {
+		final DrawableWrapper wrapper = containers.get(id - 1);
+		return wrapper != null? wrapper.target : null;
+	}
+
+	private boolean isLive(DrawableWrapper wrapper) {
+		return containers.get(wrapper.containerId) == wrapper;
+	}
+
+	/**
+	 * Applies received data, if it's next in sequence. If any update is missing, server is asked to resend it.
+	 *
+	 * @return true if contents were changed
+	 */
+	public boolean applyData(TerminalDataEvent evt) {
+		if (!evt.isFull) {
+			// already applied, probably resent
+			if (lastSequence >= 0 && evt.sequence <= lastSequence) return false;
+
+			if (lastSequence < 0 || evt.sequence != lastSequence + 1) {
+				requestResync();
+				return false;
+			}
+		}
+
+		isConsistencyCheckFailed = false;
+		// element values are decoded here, so string references must be resolved in same scope
+		PayloadEncoding.beginPayload();
+		try {
+			interpretCommandList(evt.commands);
+		} finally {
+			PayloadEncoding.endPayload();
+		}
+
+		if (isConsistencyCheckFailed) {
+			// failing twice on same update means local state is broken, so only full contents will help
+			if (evt.isFull || failedSequence == evt.sequence) lastSequence = -1;
+			failedSequence = evt.sequence;
+			requestResync();
+		} else {
+			lastSequence = evt.sequence;
+			isAwaitingResync = false;
+		}
+
+		return true;
+	}
+
+	private void requestResync() {
+		final long now = System.currentTimeMillis();
+		// updates received while waiting for answer will be resent anyway
+		if (isAwaitingResync && now - lastResyncRequest < RESYNC_RETRY_DELAY) return;
+
+		isAwaitingResync = true;
+		lastResyncRequest = now;
+		new TerminalResetEvent(terminalId, isPrivate, lastSequence).sendToServer();
+	}
+
+	/**
+	 * Should be called after every {@link #applyData(TerminalDataEvent)}, on same thread.
+	 */
+	public void purgeRemoved() {
+		if (renderOrder.size() <= containers.size()) return;
+
+		Iterator<DrawableWrapper> it = renderOrder.iterator();
+		while (it.hasNext()) {
+			final DrawableWrapper wrapper = it.next();
+			if (!isLive(wrapper)) {
+				it.remove();
+				wrapper.target.releaseResources();
+			}
+		}
+
+		renderCache.invalidate();
+	}
+
+	/**
+	 * Releases GL resources of surface and all its objects. Surface should not be drawn after this call
+	 */
+	public void dispose() {
+		renderCache.dispose();
+		for (DrawableWrapper wrapper : renderOrder)
+			wrapper.target.releaseResources();
+	}
+
 	@Override
 	protected void onConsistencyCheckFail() {
-		new TerminalResetEvent(terminalId, isPrivate).sendToServer();
+		isConsistencyCheckFailed = true;
 	}
 
 	@Override
 	public Iterator<Drawable> iterator() {
-		final Iterator<DrawableWrapper> it = containers.values().iterator();
+		final Iterator<DrawableWrapper> it = renderOrder.iterator();
 
-		return new Iterator<Drawable>() {
+		return new AbstractIterator<Drawable>() {
 			@Override
-			public void remove() {
-				throw new UnsupportedOperationException();
-			}
+			protected Drawable computeNext() {
+				while (it.hasNext()) {
+					final DrawableWrapper wrapper = it.next();
+					if (isLive(wrapper)) return wrapper.target;
+				}
 
-			@Override
-			public Drawable next() {
-				return it.next().target;
-			}
-
-			@Override
-			public boolean hasNext() {
-				return it.hasNext();
+				return endOfData();
 			}
 		};
 	}
@@ -0,0 +1,350 @@
+package openperipheral.addons.glasses;
+
+import java.util.List;
+import java.util.Map;
+
+import net.minecraft.client.renderer.GLAllocation;
+import net.minecraft.client.renderer.Tessellator;
+import net.minecraft.client.renderer.texture.TextureMap;
+
+import org.lwjgl.opengl.GL11;
+
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import cpw.mods.fml.client.FMLClientHandler;
+
+/**
+ * Draws surface contents, packing all objects with same render state into single tessellator pass.
+ * Objects may be moved ahead of ones drawn separately, but only if they don't overlap, so result is identical to painter's order.
+ *
+ * Consecutive objects that don't change between frames are compiled into display lists. Change of object only recompiles list containing it,
+ * while changes of order, visibility or group membership rebuild whole cache.
+ */
+public class SurfaceRenderer {
+
+	private static class Segment {
+		public final List<Drawable> drawables = Lists.newArrayList();
+		public final boolean cached;
+		public boolean compiled;
+
+		public Segment(boolean cached) {
+			this.cached = cached;
+		}
+	}
+
+	/**
+	 * Per-surface (or per-group) render state. Only used on client thread, which handles both received data and rendering.
+	 */
+	public static class SurfaceCache {
+		private boolean valid;
+
+		private final List<Segment> segments = Lists.newArrayList();
+
+		// segment drawing every visible object (children of groups are drawn by segment of group)
+		private final Map<Drawable, Segment> segmentsByDrawable = Maps.newIdentityHashMap();
+
+		private final Map<Drawable, Drawable.Group> parents = Maps.newIdentityHashMap();
+
+		private final List<Integer> displayLists = Lists.newArrayList();
+
+		public void invalidate() {
+			valid = false;
+		}
+
+		/**
+		 * Called when property of object changed, but order and membership of segments stays same
+		 */
+		public void invalidate(Drawable drawable) {
+			if (!valid) return;
+
+			final Drawable.Group parent = parents.get(drawable);
+			if (parent != null) parent.invalidateChild(drawable);
+
+			final Segment segment = segmentsByDrawable.get(drawable);
+			// hidden objects and ones drawn directly don't need any action
+			if (segment == null || !segment.cached) return;
+
+			// started animation, so object must be moved to uncached segment
+			if (!drawable.isCacheable()) valid = false;
+			else segment.compiled = false;
+		}
+
+		private int getDisplayList(int index) {
+			while (displayLists.size() <= index)
+				displayLists.add(GLAllocation.generateDisplayLists(1));
+			return displayLists.get(index);
+		}
+
+		boolean isValid() {
+			return valid;
+		}
+
+		private void rebuild(SurfaceClient surface) {
+			// group membership can only change with surface update, so it's resolved here
+			for (Drawable drawable : surface)
+				if (drawable instanceof Drawable.Group) ((Drawable.Group)drawable).clearChildren();
+
+			parents.clear();
+
+			List<Drawable> topLevel = Lists.newArrayList();
+			for (Drawable drawable : surface) {
+				// hidden objects are never passed to renderer (also children of hidden groups, since group is not drawn)
+				if (!drawable.visible) continue;
+
+				final Drawable parent = (drawable.group != 0 && !(drawable instanceof Drawable.Group))? surface.getDrawable(drawable.group) : null;
+				// objects in missing group are drawn as ungrouped
+				if (parent instanceof Drawable.Group) {
+					((Drawable.Group)parent).addChild(drawable);
+					parents.put(drawable, (Drawable.Group)parent);
+				} else {
+					topLevel.add(drawable);
+				}
+			}
+
+			buildSegments(topLevel);
+		}
+
+		/**
+		 * Splits objects (already sorted in draw order) into segments
+		 */
+		void buildSegments(List<Drawable> drawables) {
+			valid = true;
+			segments.clear();
+			segmentsByDrawable.clear();
+
+			Segment current = null;
+			for (Drawable drawable : drawables) {
+				final boolean cacheable = drawable.isCacheable();
+				if (current == null || current.cached != cacheable) {
+					current = new Segment(cacheable);
+					segments.add(current);
+				}
+				current.drawables.add(drawable);
+				segmentsByDrawable.put(drawable, current);
+
+				if (drawable instanceof Drawable.Group) {
+					for (Drawable child : ((Drawable.Group)drawable).getChildren())
+						segmentsByDrawable.put(child, current);
+				}
+			}
+		}
+
+		public void dispose() {
+			for (int list : displayLists)
+				GlassesRenderingUtils.releaseDisplayList(list);
+			displayLists.clear();
+			segments.clear();
+			segmentsByDrawable.clear();
+			parents.clear();
+			valid = false;
+		}
+	}
+
+	public enum BatchMode {
+		FLAT {
+			@Override
+			public void begin() {
+				GL11.glEnable(GL11.GL_BLEND);
+				GL11.glDisable(GL11.GL_TEXTURE_2D);
+				GL11.glDisable(GL11.GL_ALPHA_TEST);
+				GL11.glBlendFunc(GL11.GL_SRC_ALPHA, GL11.GL_ONE_MINUS_SRC_ALPHA);
+				GL11.glShadeModel(GL11.GL_SMOOTH);
+			}
+
+			@Override
+			public void end() {
+				GL11.glShadeModel(GL11.GL_FLAT);
+				GL11.glDisable(GL11.GL_BLEND);
+				GL11.glEnable(GL11.GL_TEXTURE_2D);
+				GL11.glEnable(GL11.GL_ALPHA_TEST);
+			}
+		},
+		BLOCK_ATLAS {
+			@Override
+			public void begin() {
+				FMLClientHandler.instance().getClient().renderEngine.bindTexture(TextureMap.locationBlocksTexture);
+				GL11.glEnable(GL11.GL_BLEND);
+				GL11.glBlendFunc(GL11.GL_SRC_ALPHA, GL11.GL_ONE_MINUS_SRC_ALPHA);
+			}
+
+			@Override
+			public void end() {
+				GL11.glDisable(GL11.GL_BLEND);
+			}
+		};
+
+		public abstract void begin();
+
+		public abstract void end();
+	}
+
+	// deferred objects bucketed by coarse grid, so batched object is only tested against ones near it
+	private static final int CELL_SHIFT = 6;
+
+	// objects covering more cells are tested directly, instead of filling grid
+	private static final int MAX_CELLS = 16;
+
+	private final List<Drawable.Batchable> batch = Lists.newArrayList();
+
+	private final List<Drawable> deferred = Lists.newArrayList();
+
+	private final ListMultimap<Integer, Drawable> deferredCells = ArrayListMultimap.create();
+
+	private final List<Drawable> deferredLarge = Lists.newArrayList();
+
+	private boolean hasUnboundedDeferred;
+
+	private BatchMode batchMode;
+
+	public void renderSurface(SurfaceClient surface, float partialTicks) {
+		final SurfaceCache cache = surface.renderCache;
+		if (!cache.valid) cache.rebuild(surface);
+		renderCached(cache, partialTicks, 1);
+	}
+
+	/**
+	 * Draws objects from already built cache, compiling lists of changed segments. Must not be called during display list compilation
+	 */
+	void renderCached(SurfaceCache cache, float partialTicks, float opacity) {
+		int listIndex = 0;
+		for (Segment segment : cache.segments) {
+			if (segment.cached) {
+				final int displayList = cache.getDisplayList(listIndex++);
+				if (!segment.compiled) {
+					// must be done before list is started, since drawables may compile own lists
+					updateDrawables(segment.drawables, partialTicks, opacity);
+					GL11.glNewList(displayList, GL11.GL_COMPILE);
+					renderDrawables(segment.drawables, partialTicks, opacity);
+					GL11.glEndList();
+					segment.compiled = true;
+				}
+				GL11.glCallList(displayList);
+			} else {
+				updateDrawables(segment.drawables, partialTicks, opacity);
+				renderDrawables(segment.drawables, partialTicks, opacity);
+				// finished animations can now be cached
+				for (Drawable drawable : segment.drawables)
+					if (drawable.isCacheable()) cache.invalidate();
+			}
+		}
+	}
+
+	static void updateDrawables(Iterable<Drawable> drawables, float partialTicks, float opacity) {
+		for (Drawable drawable : drawables)
+			drawable.update(partialTicks, opacity);
+	}
+
+	/**
+	 * Draws objects, without calling {@link Drawable#update(float, float)}
+	 *
+	 * @param opacity
+	 *            multiplier of alpha of all objects
+	 */
+	void renderDrawables(Iterable<Drawable> drawables, float partialTicks, float opacity) {
+		for (Drawable drawable : drawables) {
+			if (!(drawable instanceof Drawable.Batchable)) {
+				addDeferred(drawable);
+				continue;
+			}
+
+			final Drawable.Batchable batchable = (Drawable.Batchable)drawable;
+			final BatchMode mode = batchable.getBatchMode();
+			if ((batchMode != null && batchMode != mode) || overlapsDeferred(batchable)) flush(partialTicks, opacity);
+			batchMode = mode;
+			batch.add(batchable);
+		}
+
+		flush(partialTicks, opacity);
+	}
+
+	private static int minCell(float pos) {
+		return (int)Math.floor(pos) >> CELL_SHIFT;
+	}
+
+	private static int maxCell(float pos, float size) {
+		return ((int)Math.ceil(pos + size) - 1) >> CELL_SHIFT;
+	}
+
+	private static int cellCount(Drawable drawable) {
+		return (maxCell(drawable.x, drawable.getDrawWidth()) - minCell(drawable.x) + 1) *
+				(maxCell(drawable.y, drawable.getDrawHeight()) - minCell(drawable.y) + 1);
+	}
+
+	private static boolean isEmpty(Drawable drawable) {
+		return drawable.getDrawWidth() <= 0 || drawable.getDrawHeight() <= 0;
+	}
+
+	private static int cellKey(int cellX, int cellY) {
+		return (cellX << 16) ^ (cellY & 0xFFFF);
+	}
+
+	private void addDeferred(Drawable drawable) {
+		deferred.add(drawable);
+
+		if (!drawable.isBounded()) {
+			hasUnboundedDeferred = true;
+		} else if (isEmpty(drawable)) {
+			// can't overlap anything
+		} else if (cellCount(drawable) > MAX_CELLS) {
+			deferredLarge.add(drawable);
+		} else {
+			final int maxX = maxCell(drawable.x, drawable.getDrawWidth());
+			final int maxY = maxCell(drawable.y, drawable.getDrawHeight());
+			for (int cellX = minCell(drawable.x); cellX <= maxX; cellX++)
+				for (int cellY = minCell(drawable.y); cellY <= maxY; cellY++)
+					deferredCells.put(cellKey(cellX, cellY), drawable);
+		}
+	}
+
+	private boolean overlapsDeferred(Drawable drawable) {
+		if (deferred.isEmpty()) return false;
+		if (hasUnboundedDeferred) return true;
+		if (isEmpty(drawable)) return false;
+
+		// big objects would visit more cells than there are candidates
+		if (cellCount(drawable) > MAX_CELLS) return overlapsAny(deferred, drawable);
+
+		if (overlapsAny(deferredLarge, drawable)) return true;
+
+		final int maxX = maxCell(drawable.x, drawable.getDrawWidth());
+		final int maxY = maxCell(drawable.y, drawable.getDrawHeight());
+		for (int cellX = minCell(drawable.x); cellX <= maxX; cellX++)
+			for (int cellY = minCell(drawable.y); cellY <= maxY; cellY++)
+				if (overlapsAny(deferredCells.get(cellKey(cellX, cellY)), drawable)) return true;
+
+		return false;
+	}
+
+	private static boolean overlapsAny(List<Drawable> candidates, Drawable drawable) {
+		for (Drawable d : candidates)
+			if (d.overlaps(drawable)) return true;
+
+		return false;
+	}
+
+	private void flush(float partialTicks, float opacity) {
+		if (!batch.isEmpty()) {
+			batchMode.begin();
+			final Tessellator tessellator = Tessellator.instance;
+			tessellator.startDrawingQuads();
+			for (Drawable.Batchable drawable : batch)
+				drawable.addToBatch(tessellator, opacity);
+			tessellator.draw();
+			batchMode.end();
+			batch.clear();
+		}
+
+		batchMode = null;
+
+		for (Drawable drawable : deferred)
+			drawable.draw(partialTicks, opacity);
+
+		deferred.clear();
+		deferredCells.clear();
+		deferredLarge.clear();
+		hasUnboundedDeferred = false;
+	}
+}
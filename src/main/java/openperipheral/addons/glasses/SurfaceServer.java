@@ -1,22 +1,164 @@
 package openperipheral.addons.glasses;
 
-import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
-import openmods.structured.ElementField;
 import openmods.structured.StructuredDataMaster;
+import openperipheral.addons.Config;
+import openperipheral.addons.glasses.TerminalEvent.TerminalDataEvent;
 import openperipheral.api.AdapterSourceName;
 import openperipheral.api.LuaObject;
 
 import com.google.common.base.Objects;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Queues;
+import com.google.common.collect.Sets;
 
 @LuaObject
 @AdapterSourceName("glasses_surface")
-public class SurfaceServer extends StructuredDataMaster<Drawable, ElementField> implements IDrawableContainer {
+public class SurfaceServer extends StructuredDataMaster<Drawable, DrawableElement> implements IDrawableContainer {
+
+	// incremented on every change of contents
+	private int version;
+
+	private TerminalDataEvent snapshot;
+
+	private int snapshotVersion;
+
+	// sequence number of last update event
+	private int sequence;
+
+	private final Deque<TerminalDataEvent> history = Queues.newArrayDeque();
+
+	// updates already created (and stored in history), but not yet taken by bridge for sending
+	private final List<TerminalDataEvent> unsentUpdates = Lists.newArrayList();
+
+	// immutable copy of containers, shared by all readers until next add or remove
+	private volatile ImmutableMap<Integer, Drawable> objectsSnapshot;
+
+	private volatile ImmutableMap<Integer, DrawableHandle> handlesSnapshot;
 
 	public SurfaceServer() {}
 
+	/**
+	 * Returns event with full contents of surface. Event is reused until surface is modified, so it's encoded only once for all requests in that time
+	 */
+	public synchronized TerminalDataEvent getFullDataEvent(long terminalId, boolean isPrivate) {
+		// snapshot contains all changes, so it must be tagged with sequence of update that includes them. Otherwise receiver would apply them twice
+		if (hasUpdates()) createUpdateDataEvent(terminalId, isPrivate);
+
+		if (snapshot == null || snapshotVersion != version || snapshot.terminalId != terminalId || snapshot.isPrivate != isPrivate) {
+			snapshot = new TerminalDataEvent(terminalId, isPrivate, sequence, true);
+			PayloadEncoding.beginPayload();
+			try {
+				appendFullCommands(snapshot.commands);
+				snapshot.encode();
+			} finally {
+				PayloadEncoding.endPayload();
+			}
+			snapshotVersion = version;
+		}
+
+		return snapshot;
+	}
+
+	/**
+	 * @return true if there are changes not yet taken with {@link #takeUpdateEvents(long, boolean)}
+	 */
+	public synchronized boolean hasUnsentUpdates() {
+		return hasUpdates() || !unsentUpdates.isEmpty();
+	}
+
+	/**
+	 * Returns events with all changes since last call, in sequence order. Events are also stored for later resending
+	 */
+	public synchronized List<TerminalDataEvent> takeUpdateEvents(long terminalId, boolean isPrivate) {
+		if (hasUpdates()) createUpdateDataEvent(terminalId, isPrivate);
+
+		final List<TerminalDataEvent> result = ImmutableList.copyOf(unsentUpdates);
+		unsentUpdates.clear();
+		return result;
+	}
+
+	private void createUpdateDataEvent(long terminalId, boolean isPrivate) {
+		TerminalDataEvent result = new TerminalDataEvent(terminalId, isPrivate, ++sequence, false);
+		PayloadEncoding.beginPayload();
+		try {
+			appendUpdateCommands(result.commands);
+			result.encode();
+		} finally {
+			PayloadEncoding.endPayload();
+		}
+
+		// snapshot must have same sequence number as last update
+		snapshot = null;
+
+		final int historySize = Config.glassesResyncHistorySize;
+		if (historySize > 0) history.addLast(result);
+		while (history.size() > Math.max(historySize, 0))
+			history.removeFirst();
+
+		unsentUpdates.add(result);
+	}
+
+	/**
+	 * @return all update events newer than given sequence number or null, if some of them are no longer available (or there are none)
+	 */
+	public synchronized List<TerminalDataEvent> getUpdatesSince(int lastSequence) {
+		if (lastSequence < 0 || lastSequence >= sequence || history.isEmpty()) return null;
+		if (history.getFirst().sequence > lastSequence + 1) return null;
+
+		List<TerminalDataEvent> result = Lists.newArrayList();
+		for (TerminalDataEvent evt : history)
+			if (evt.sequence > lastSequence) result.add(evt);
+		return result;
+	}
+
+	private void onModified() {
+		version++;
+		snapshot = null;
+	}
+
+	private void onStructureModified() {
+		onModified();
+		objectsSnapshot = null;
+		handlesSnapshot = null;
+	}
+
+	synchronized void removeDrawable(int containerId) {
+		final Drawable removed = containers.get(containerId);
+		removeContainer(containerId);
+
+		// otherwise members would silently join any group that gets same id later
+		if (removed instanceof Drawable.Group) {
+			final int groupId = containerId + 1;
+			for (Drawable drawable : containers.values())
+				if (drawable.group == groupId) drawable.clearGroup();
+		}
+
+		onStructureModified();
+	}
+
+	/**
+	 * Checks if object can be moved to group with given id (0 means no group)
+	 */
+	synchronized void checkGroup(Drawable member, int groupId) {
+		if (groupId == 0) return;
+		Preconditions.checkArgument(!(member instanceof Drawable.Group), "Groups can't be nested");
+		Preconditions.checkArgument(getById(groupId) instanceof Drawable.Group, "Object %s is not a group", groupId);
+	}
+
+	synchronized void markModified(DrawableElement element) {
+		markElementModified(element.elementId);
+		onModified();
+	}
+
 	@Override
 	public synchronized Drawable getById(int id) {
 		return containers.get(id - 1);
@@ -27,24 +169,117 @@ public class SurfaceServer extends StructuredDataMaster<Drawable, ElementField>
 		for (Drawable drawable : containers.values())
 			drawable.setDeleted();
 		removeAll();
+		onStructureModified();
+	}
+
+	private ImmutableMap<Integer, Drawable> getObjectsSnapshot() {
+		ImmutableMap<Integer, Drawable> result = objectsSnapshot;
+		if (result == null) {
+			synchronized (this) {
+				result = objectsSnapshot;
+				if (result == null) {
+					result = ImmutableMap.copyOf(containers);
+					objectsSnapshot = result;
+				}
+			}
+		}
+
+		return result;
+	}
+
+	private ImmutableMap<Integer, DrawableHandle> getHandlesSnapshot() {
+		ImmutableMap<Integer, DrawableHandle> result = handlesSnapshot;
+		if (result == null) {
+			synchronized (this) {
+				result = handlesSnapshot;
+				if (result == null) {
+					ImmutableMap.Builder<Integer, DrawableHandle> builder = ImmutableMap.builder();
+					for (Map.Entry<Integer, Drawable> e : getObjectsSnapshot().entrySet()) {
+						builder.put(e.getKey(), new DrawableHandle(this, e.getValue()));
+					}
+					result = builder.build();
+					handlesSnapshot = result;
+				}
+			}
+		}
+
+		return result;
 	}
 
 	@Override
-	public synchronized Set<Integer> getAllIds() {
-		return Collections.unmodifiableSet(containers.keySet());
+	public Set<Integer> getAllIds() {
+		return getObjectsSnapshot().keySet();
 	}
 
 	@Override
-	public synchronized Map<Integer, Drawable> getAllObjects() {
-		return Collections.unmodifiableMap(containers);
+	public Map<Integer, Drawable> getAllObjects() {
+		return getObjectsSnapshot();
+	}
+
+	@Override
+	public Map<Integer, DrawableHandle> getAllHandles() {
+		return getHandlesSnapshot();
+	}
+
+	@Override
+	public Map<Integer, DrawableHandle> getObjectsByType(String type) {
+		final String typeName = Drawable.normalizeTypeName(type);
+		Map<Integer, DrawableHandle> result = Maps.newHashMap();
+		for (Map.Entry<Integer, DrawableHandle> e : getHandlesSnapshot().entrySet())
+			if (typeName.equals(e.getValue().getType())) result.put(e.getKey(), e.getValue());
+		return result;
+	}
+
+	@Override
+	public List<Integer> addObjects(Map<?, ?> specs) {
+		// parsing is done before taking lock, so invalid spec will not leave half-added list
+		List<Drawable> drawables = Lists.newArrayList();
+		for (int index = 1; index <= specs.size(); index++) {
+			Object spec = specs.get(new Double(index));
+			Preconditions.checkArgument(spec != null, "Missing object description at index %s", index);
+			Preconditions.checkArgument(spec instanceof Map, "Object description at index %s is not a table", index);
+			drawables.add(Drawable.createFromSpec((Map<?, ?>)spec));
+		}
+
+		List<Integer> result = Lists.newArrayList();
+		synchronized (this) {
+			// groups must already exist, since ids of new objects are not known before adding
+			for (Drawable drawable : drawables)
+				checkGroup(drawable, drawable.group);
+
+			for (Drawable drawable : drawables)
+				result.add(addDrawable(drawable).getId());
+		}
+
+		return result;
+	}
+
+	@Override
+	public synchronized void deleteObjects(Map<?, ?> ids) {
+		Set<Drawable> drawables = Sets.newHashSet();
+		for (Object id : ids.values()) {
+			Preconditions.checkArgument(id instanceof Number, "Invalid object id: %s", id);
+			Drawable drawable = containers.get(((Number)id).intValue() - 1);
+			Preconditions.checkArgument(drawable != null, "Invalid object id: %s", id);
+			drawables.add(drawable);
+		}
+
+		for (Drawable drawable : drawables)
+			drawable.delete();
 	}
 
 	private synchronized Drawable addDrawable(Drawable drawable) {
 		int id = addContainer(drawable);
 		drawable.onAdded(this, id);
+		onStructureModified();
 		return drawable;
 	}
 
+	@Override
+	public Drawable addGroup(short x, short y) {
+		return addDrawable(new Drawable.Group(x, y));
+	}
+
 	@Override
 	public Drawable addText(short x, short y, String text, Integer color) {
 		return addDrawable(new Drawable.Text(x, y, text, Objects.firstNonNull(color, 0xFFFFFF)));
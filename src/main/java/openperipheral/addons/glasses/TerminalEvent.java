@@ -1,14 +1,18 @@
 package openperipheral.addons.glasses;
 
-import java.io.DataInput;
-import java.io.DataOutput;
-import java.io.IOException;
+import java.io.*;
 import java.util.List;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
 
 import openmods.network.event.EventDirection;
 import openmods.network.event.NetworkEvent;
 import openmods.network.event.NetworkEventMeta;
 import openmods.structured.Command.CommandList;
+import openperipheral.addons.Config;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
 
 public abstract class TerminalEvent extends NetworkEvent {
 
@@ -40,14 +44,38 @@ public abstract class TerminalEvent extends NetworkEvent {
 		info.add(isPrivate? "private" : "public");
 	}
 
+	/**
+	 * Request for resending surface contents. If {@link #lastSequence} is not negative, server may only resend updates newer than that
+	 */
 	@NetworkEventMeta(direction = EventDirection.C2S)
 	public static class TerminalResetEvent extends TerminalEvent {
+		public int lastSequence = -1;
+
 		public TerminalResetEvent() {
 			super();
 		}
 
-		public TerminalResetEvent(long terminalId, boolean isPrivate) {
+		public TerminalResetEvent(long terminalId, boolean isPrivate, int lastSequence) {
 			super(terminalId, isPrivate);
+			this.lastSequence = lastSequence;
+		}
+
+		@Override
+		protected void readFromStream(DataInput input) throws IOException {
+			super.readFromStream(input);
+			lastSequence = PayloadEncoding.readSignedVarInt(input);
+		}
+
+		@Override
+		protected void writeToStream(DataOutput output) throws IOException {
+			super.writeToStream(output);
+			PayloadEncoding.writeSignedVarInt(output, lastSequence);
+		}
+
+		@Override
+		protected void appendLogInfo(List<String> info) {
+			super.appendLogInfo(info);
+			info.add(Integer.toString(lastSequence));
 		}
 	}
 
@@ -61,33 +89,142 @@ public abstract class TerminalEvent extends NetworkEvent {
 		}
 	}
 
-	@NetworkEventMeta(direction = EventDirection.S2C, chunked = true, compressed = true)
+	/**
+	 * Command list is encoded (and compressed, if big enough) only once, on first write. Same instance can be then sent to any number of players.
+	 * Commands must not be modified after event was sent.
+	 *
+	 * Every update of surface has next sequence number. Full event contains state of surface after update with same sequence number.
+	 */
+	@NetworkEventMeta(direction = EventDirection.S2C, chunked = true)
 	public static class TerminalDataEvent extends TerminalEvent {
 		public final CommandList commands = new CommandList();
 
+		public int sequence;
+
+		public boolean isFull;
+
+		private static final byte FORMAT_RAW = 0;
+		private static final byte FORMAT_DEFLATE = 1;
+
+		private byte[] encoded;
+
+		private byte[] payload;
+
+		private int uncompressedSize;
+
 		public TerminalDataEvent() {
 			super();
 		}
 
-		public TerminalDataEvent(long terminalId, boolean isPrivate) {
+		public TerminalDataEvent(long terminalId, boolean isPrivate, int sequence, boolean isFull) {
 			super(terminalId, isPrivate);
+			this.sequence = sequence;
+			this.isFull = isFull;
+		}
+
+		/**
+		 * Serializes commands, without compression. Elements are written with their current values, so it should be called while source surface is locked,
+		 * in same string table scope as command creation. Any later step (compression, sending) does not need lock.
+		 */
+		public synchronized void encode() {
+			if (encoded != null || payload != null) return;
+
+			try {
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				DataOutputStream output = new DataOutputStream(bytes);
+				commands.writeToStream(output);
+				output.close();
+				encoded = bytes.toByteArray();
+				uncompressedSize = encoded.length + 1;
+			} catch (IOException e) {
+				throw Throwables.propagate(e);
+			}
+		}
+
+		public synchronized byte[] getPayload() throws IOException {
+			if (payload == null) {
+				encode();
+				final byte[] raw = encoded;
+				encoded = null;
+
+				// for small updates deflate framing costs more than it saves
+				payload = raw.length >= Config.glassesCompressionThreshold? compress(raw) : null;
+				if (payload == null || payload.length >= uncompressedSize) payload = withFormat(FORMAT_RAW, raw);
+			}
+
+			return payload;
+		}
+
+		private static byte[] withFormat(int format, byte[] data) {
+			final byte[] result = new byte[data.length + 1];
+			result[0] = (byte)format;
+			System.arraycopy(data, 0, result, 1, data.length);
+			return result;
+		}
+
+		private static byte[] compress(byte[] data) throws IOException {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			bytes.write(FORMAT_DEFLATE);
+			OutputStream output = new DeflaterOutputStream(bytes);
+			output.write(data);
+			output.close();
+			return bytes.toByteArray();
+		}
+
+		public int getPayloadSize() {
+			try {
+				return getPayload().length;
+			} catch (IOException e) {
+				throw Throwables.propagate(e);
+			}
+		}
+
+		/**
+		 * Size of payload if it was sent without compression
+		 */
+		public synchronized int getUncompressedSize() {
+			encode();
+			return uncompressedSize;
 		}
 
 		@Override
 		protected void readFromStream(DataInput input) throws IOException {
 			super.readFromStream(input);
-			commands.readFromStream(input);
+			sequence = PayloadEncoding.readVarInt(input);
+			isFull = input.readBoolean();
+			final byte[] payload = new byte[PayloadEncoding.readVarInt(input)];
+			input.readFully(payload);
+			Preconditions.checkState(payload.length > 0, "Empty payload");
+
+			InputStream payloadInput = new ByteArrayInputStream(payload, 1, payload.length - 1);
+			switch (payload[0]) {
+				case FORMAT_RAW:
+					break;
+				case FORMAT_DEFLATE:
+					payloadInput = new InflaterInputStream(payloadInput);
+					break;
+				default:
+					throw new IllegalStateException("Invalid payload format: " + payload[0]);
+			}
+
+			// element values are decoded later, in string table scope opened by SurfaceClient
+			commands.readFromStream(new DataInputStream(payloadInput));
 		}
 
 		@Override
 		protected void writeToStream(DataOutput output) throws IOException {
 			super.writeToStream(output);
-			commands.writeToStream(output);
+			PayloadEncoding.writeVarInt(output, sequence);
+			output.writeBoolean(isFull);
+			final byte[] payload = getPayload();
+			PayloadEncoding.writeVarInt(output, payload.length);
+			output.write(payload);
 		}
 
 		@Override
 		protected void appendLogInfo(List<String> info) {
 			super.appendLogInfo(info);
+			info.add((isFull? "full:" : "update:") + sequence);
 			info.add(Integer.toString(commands.size()));
 		}
 	}
@@ -16,16 +16,18 @@ public class TerminalManagerClient {
 
 	private final Table<Long, String, SurfaceClient> surfaces = HashBasedTable.create();
 
+	private final SurfaceRenderer renderer = new SurfaceRenderer();
+
 	private void tryDrawSurface(long guid, String player, float partialTicks) {
 		SurfaceClient surface = surfaces.get(guid, player);
-		if (surface != null) for (Drawable drawable : surface)
-			drawable.draw(partialTicks);
+		if (surface != null) renderer.renderSurface(surface, partialTicks);
 	}
 
 	@SubscribeEvent
 	public void onRenderGameOverlay(RenderGameOverlayEvent evt) {
 		if (evt.type == ElementType.HELMET && evt instanceof RenderGameOverlayEvent.Post) {
 			EntityPlayer player = Minecraft.getMinecraft().thePlayer;
+			GlassesRenderingUtils.deleteReleasedDisplayLists();
 			Long guid = TerminalUtils.tryGetTerminalGuid(player);
 			if (guid != null) {
 				tryDrawSurface(guid, TerminalUtils.GLOBAL_MARKER, evt.partialTicks);
@@ -49,12 +51,14 @@ public class TerminalManagerClient {
 			surfaces.put(evt.terminalId, surfaceName, surface);
 		}
 
-		surface.interpretCommandList(evt.commands);
+		// render cache is invalidated by surface, for changed objects only
+		if (surface.applyData(evt)) surface.purgeRemoved();
 	}
 
 	@SubscribeEvent
 	public void onTerminalClear(TerminalClearEvent evt) {
 		String surfaceName = getSurfaceName(evt);
-		surfaces.remove(evt.terminalId, surfaceName);
+		SurfaceClient surface = surfaces.remove(evt.terminalId, surfaceName);
+		if (surface != null) surface.dispose();
 	}
 }
\ No newline at end of file
@@ -1,19 +1,33 @@
 package openperipheral.addons.glasses;
 
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentMap;
 
 import net.minecraft.entity.player.EntityPlayer;
 import net.minecraft.entity.player.EntityPlayerMP;
+import net.minecraft.item.ItemStack;
+import net.minecraftforge.common.MinecraftForge;
 import net.minecraftforge.event.ServerChatEvent;
 import openmods.Log;
+import openperipheral.addons.Config;
 import openperipheral.addons.api.TerminalRegisterEvent;
 import openperipheral.addons.glasses.TerminalEvent.TerminalDataEvent;
 import openperipheral.addons.glasses.TerminalEvent.TerminalResetEvent;
 
+import com.google.common.base.Objects;
+import com.google.common.collect.HashBasedTable;
+import com.google.common.collect.Lists;
 import com.google.common.collect.MapMaker;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Table;
 
 import cpw.mods.fml.common.eventhandler.SubscribeEvent;
+import cpw.mods.fml.common.gameevent.PlayerEvent;
+import cpw.mods.fml.common.gameevent.TickEvent;
 
 public class TerminalManagerServer {
 	private TerminalManagerServer() {}
@@ -22,6 +36,19 @@ public class TerminalManagerServer {
 
 	private final Map<Long, TileEntityGlassesBridge> listeners = new MapMaker().weakValues().makeMap();
 
+	private static class WornTerminal {
+		public EntityPlayerMP player;
+
+		// last seen head slot contents, used to skip NBT reads while nothing changes
+		public ItemStack stack;
+		public int bindGeneration;
+
+		public Long guid;
+	}
+
+	// terminal worn by every online player. Only accessed from server thread
+	private final Map<UUID, WornTerminal> wornTerminals = Maps.newHashMap();
+
 	@SubscribeEvent
 	public void onServerChatEvent(ServerChatEvent event) {
 		EntityPlayerMP player = event.player;
@@ -43,39 +70,201 @@ public class TerminalManagerServer {
 		return bridge.getSurface(playerId);
 	}
 
+	private static class ResetCounter {
+		private long periodStart;
+		private int count;
+		private boolean reported;
+
+		// requests over limit, answered when next period starts. Only newest request for every surface is kept
+		private final Table<Long, Boolean, TerminalResetEvent> deferred = HashBasedTable.create();
+
+		private void updatePeriod(long now, long periodLength) {
+			if (now - periodStart >= periodLength) {
+				periodStart = now;
+				count = 0;
+				reported = false;
+			}
+		}
+
+		/**
+		 * @return true if request can be answered now, otherwise it's stored for {@link #pollDeferred(long, int, long)}
+		 */
+		public synchronized boolean tryAcquire(TerminalResetEvent evt, long now, int limit, long periodLength) {
+			updatePeriod(now, periodLength);
+			if (count < limit) {
+				count++;
+				return true;
+			}
+
+			deferred.put(evt.terminalId, evt.isPrivate, evt);
+			return false;
+		}
+
+		public synchronized List<TerminalResetEvent> pollDeferred(long now, int limit, long periodLength) {
+			if (deferred.isEmpty()) return Collections.emptyList();
+			updatePeriod(now, periodLength);
+
+			List<TerminalResetEvent> result = Lists.newArrayList();
+			Iterator<TerminalResetEvent> it = deferred.values().iterator();
+			while (it.hasNext() && count < limit) {
+				result.add(it.next());
+				it.remove();
+				count++;
+			}
+
+			return result;
+		}
+
+		public synchronized boolean markReported() {
+			if (reported) return false;
+			reported = true;
+			return true;
+		}
+	}
+
+	private final ConcurrentMap<EntityPlayer, ResetCounter> resetCounters = new MapMaker().weakKeys().makeMap();
+
+	private boolean canReset(TerminalResetEvent evt) {
+		final int limit = Config.glassesResetLimit;
+		if (limit <= 0) return true;
+
+		final EntityPlayer player = evt.sender;
+		ResetCounter counter = resetCounters.get(player);
+		if (counter == null) {
+			counter = new ResetCounter();
+			ResetCounter prev = resetCounters.putIfAbsent(player, counter);
+			if (prev != null) counter = prev;
+		}
+
+		final long periodLength = Config.glassesResetLimitPeriod * 1000L;
+		if (counter.tryAcquire(evt, System.currentTimeMillis(), limit, periodLength)) return true;
+
+		if (counter.markReported()) Log.warn("Player %s sent more than %d surface reset requests in %d seconds, delaying until end of period", player, limit, Config.glassesResetLimitPeriod);
+		return false;
+	}
+
+	private void answerDeferredResets() {
+		final int limit = Config.glassesResetLimit;
+		final long periodLength = Config.glassesResetLimitPeriod * 1000L;
+		final long now = System.currentTimeMillis();
+
+		for (ResetCounter counter : resetCounters.values())
+			for (TerminalResetEvent evt : counter.pollDeferred(now, limit, periodLength))
+				answerResetRequest(evt);
+	}
+
 	@SubscribeEvent
 	public void onResetRequest(TerminalResetEvent evt) {
+		// requests over limit are answered later, on server tick. Client would otherwise stay out of sync until it retries
+		if (canReset(evt)) answerResetRequest(evt);
+	}
+
+	private void answerResetRequest(TerminalResetEvent evt) {
 		EntityPlayer player = evt.sender;
 		UUID playerUUID = evt.isPrivate? player.getGameProfile().getId() : TerminalUtils.GLOBAL_SURFACE_UUID;
 		SurfaceServer surface = getSurface(evt.terminalId, playerUUID);
 
 		if (surface != null) {
-			TerminalDataEvent resetEvt = createFullDataEvent(surface, evt.terminalId, evt.isPrivate);
-			evt.reply(resetEvt);
+			// client that fell behind only gets missing updates, full contents are sent only when history is not enough
+			List<TerminalDataEvent> missingUpdates = surface.getUpdatesSince(evt.lastSequence);
+			if (missingUpdates != null) {
+				for (TerminalDataEvent update : missingUpdates)
+					evt.reply(update);
+			} else {
+				evt.reply(surface.getFullDataEvent(evt.terminalId, evt.isPrivate));
+			}
 		} else {
 			Log.warn("Player %s requested invalid surface (%s,%b)", player, TerminalUtils.formatTerminalId(evt.terminalId), evt.isPrivate);
 		}
 	}
 
-	public static TerminalDataEvent createFullDataEvent(SurfaceServer surface, long terminalId, boolean isPrivate) {
-		TerminalDataEvent result = new TerminalDataEvent(terminalId, isPrivate);
-		surface.appendFullCommands(result.commands);
-		return result;
+	@SubscribeEvent
+	public void onTerminalRegister(TerminalRegisterEvent evt) {
+		TileEntityGlassesBridge listener = listeners.get(evt.terminalId);
+		if (listener != null) listener.registerTerminal(evt.player);
+	}
+
+	@SubscribeEvent
+	public void onServerTick(TickEvent.ServerTickEvent evt) {
+		if (evt.phase != TickEvent.Phase.END) return;
+
+		answerDeferredResets();
+
+		for (TileEntityGlassesBridge bridge : listeners.values())
+			if (!bridge.isInvalid()) bridge.onServerTick();
+	}
+
+	@SubscribeEvent
+	public void onPlayerTick(TickEvent.PlayerTickEvent evt) {
+		if (evt.phase != TickEvent.Phase.END || !(evt.player instanceof EntityPlayerMP)) return;
+
+		final EntityPlayerMP player = (EntityPlayerMP)evt.player;
+		final UUID playerId = player.getGameProfile().getId();
+		WornTerminal worn = wornTerminals.get(playerId);
+		if (worn == null) {
+			worn = new WornTerminal();
+			wornTerminals.put(playerId, worn);
+		}
+
+		worn.player = player;
+
+		final ItemStack stack = TerminalUtils.getHeadSlot(player);
+		final int bindGeneration = TerminalUtils.getBindGeneration();
+		if (stack == worn.stack && bindGeneration == worn.bindGeneration) return;
+
+		worn.stack = stack;
+		worn.bindGeneration = bindGeneration;
+
+		final Long guid = TerminalUtils.tryGetTerminalGuid(stack);
+		final Long prevGuid = worn.guid;
+		if (Objects.equal(guid, prevGuid)) return;
+
+		worn.guid = guid;
+		if (prevGuid != null) onTerminalRemoved(playerId, prevGuid);
+		// glasses were equipped, swapped or rebound
+		if (guid != null) MinecraftForge.EVENT_BUS.post(new TerminalRegisterEvent(player, guid));
+	}
+
+	@SubscribeEvent
+	public void onPlayerLogout(PlayerEvent.PlayerLoggedOutEvent evt) {
+		final UUID playerId = evt.player.getGameProfile().getId();
+		final WornTerminal worn = wornTerminals.remove(playerId);
+		if (worn != null && worn.guid != null) onTerminalRemoved(playerId, worn.guid);
 	}
 
-	public static TerminalDataEvent createUpdateDataEvent(SurfaceServer surface, long terminalId, boolean isPrivate) {
-		TerminalDataEvent result = new TerminalDataEvent(terminalId, isPrivate);
-		surface.appendUpdateCommands(result.commands);
-		return result;
+	@SubscribeEvent
+	public void onPlayerRespawn(PlayerEvent.PlayerRespawnEvent evt) {
+		onPlayerEntityChanged(evt.player);
 	}
 
 	@SubscribeEvent
-	public void onTerminalRegister(TerminalRegisterEvent evt) {
-		TileEntityGlassesBridge listener = listeners.get(evt.terminalId);
-		if (listener != null) listener.registerTerminal(evt.player);
+	public void onPlayerChangedDimension(PlayerEvent.PlayerChangedDimensionEvent evt) {
+		onPlayerEntityChanged(evt.player);
+	}
+
+	private void onPlayerEntityChanged(EntityPlayer player) {
+		if (!(player instanceof EntityPlayerMP)) return;
+
+		// if glasses were lost, player will be removed on next tick
+		final WornTerminal worn = wornTerminals.get(player.getGameProfile().getId());
+		if (worn != null && worn.guid != null) {
+			worn.player = (EntityPlayerMP)player;
+			TileEntityGlassesBridge bridge = listeners.get(worn.guid);
+			if (bridge != null) bridge.onPlayerEntityChanged((EntityPlayerMP)player);
+		}
+	}
+
+	private void onTerminalRemoved(UUID playerId, long guid) {
+		TileEntityGlassesBridge bridge = listeners.get(guid);
+		if (bridge != null) bridge.onPlayerLeave(playerId);
 	}
 
 	public void registerBridge(long terminalId, TileEntityGlassesBridge bridge) {
 		listeners.put(terminalId, bridge);
+
+		// players are registered only on equip, so ones that put glasses on before bridge was loaded must be added here
+		if (bridge.getWorldObj() == null || bridge.getWorldObj().isRemote) return;
+		for (WornTerminal worn : wornTerminals.values())
+			if (worn.guid != null && worn.guid == terminalId) bridge.registerTerminal(worn.player);
 	}
 }
\ No newline at end of file
@@ -1,6 +1,7 @@
 package openperipheral.addons.glasses;
 
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import net.minecraft.entity.player.EntityPlayer;
 import net.minecraft.item.Item;
@@ -30,6 +31,19 @@ public class TerminalUtils {
 		return Long.parseLong(StringUtils.randomString(8), 36);
 	}
 
+	private static final AtomicInteger bindGeneration = new AtomicInteger();
+
+	/**
+	 * Should be called after terminal item is bound to new terminal, since cached guids of item stacks may be no longer valid
+	 */
+	public static void onTerminalBound() {
+		bindGeneration.incrementAndGet();
+	}
+
+	public static int getBindGeneration() {
+		return bindGeneration.get();
+	}
+
 	public static final UUID GLOBAL_SURFACE_UUID = UUID.fromString("df66eff0-1cae-11e4-8c21-0800200c9a66");
 	public static final String GLOBAL_MARKER = "GLOBAL";
 	public static final String PRIVATE_MARKER = "PRIVATE";
@@ -2,12 +2,12 @@ package openperipheral.addons.glasses;
 
 import java.lang.ref.WeakReference;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 import net.minecraft.entity.player.EntityPlayer;
 import net.minecraft.entity.player.EntityPlayerMP;
 import net.minecraft.item.ItemStack;
 import net.minecraft.nbt.NBTTagCompound;
-import net.minecraft.server.MinecraftServer;
 import net.minecraftforge.common.util.ForgeDirection;
 import openmods.api.ICustomHarvestDrops;
 import openmods.api.IPlaceAwareTile;
@@ -18,6 +18,7 @@ import openperipheral.addons.glasses.TerminalEvent.TerminalClearEvent;
 import openperipheral.addons.glasses.TerminalEvent.TerminalDataEvent;
 import openperipheral.api.*;
 
+import com.google.common.base.Objects;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
@@ -31,19 +32,36 @@ public class TileEntityGlassesBridge extends OpenTileEntity implements IAttachab
 
 	public static final String TAG_GUID = "guid";
 
+	private static final String TAG_AUTO_SYNC_INTERVAL = "autoSyncInterval";
+
+	private static final String TAG_AUTO_SYNC_BUDGET = "autoSyncBudget";
+
 	private static final String EVENT_CHAT_MESSAGE = "chat_command";
 
 	private static final String EVENT_PLAYER_JOIN = "registered_player_join";
 
 	private static class PlayerInfo {
 		public final GameProfile profile;
-		public final WeakReference<EntityPlayerMP> player;
-		public SurfaceServer surface;
+		// replaced when player entity is recreated (for example on respawn)
+		public volatile WeakReference<EntityPlayerMP> player;
+
+		// created on first request, most bridges never use private surfaces
+		public volatile SurfaceServer surface;
+
+		// client does not know surface yet, so it needs full contents instead of updates. Set before surface is published
+		public volatile boolean isSurfaceNew;
 
 		public PlayerInfo(TileEntityGlassesBridge parent, EntityPlayerMP player) {
 			this.player = new WeakReference<EntityPlayerMP>(player);
 			this.profile = player.getGameProfile();
-			this.surface = new SurfaceServer();
+		}
+
+		public synchronized SurfaceServer getOrCreateSurface() {
+			if (surface == null) {
+				isSurfaceNew = true;
+				surface = new SurfaceServer();
+			}
+			return surface;
 		}
 	}
 
@@ -55,6 +73,23 @@ public class TileEntityGlassesBridge extends OpenTileEntity implements IAttachab
 
 	private long guid;
 
+	// updated on server thread, but read by asynchronous getSyncStatistics()
+	private final AtomicLong savedEncodes = new AtomicLong();
+
+	private final AtomicLong packetsSent = new AtomicLong();
+
+	private final AtomicLong bytesSent = new AtomicLong();
+
+	private final AtomicLong uncompressedBytesSent = new AtomicLong();
+
+	private int autoSyncInterval;
+
+	private int autoSyncBudget;
+
+	private int ticksSinceSync;
+
+	private long syncCredit;
+
 	@IncludeInterface(IDrawableContainer.class)
 	private SurfaceServer globalSurface = new SurfaceServer();
 
@@ -87,52 +122,41 @@ public class TileEntityGlassesBridge extends OpenTileEntity implements IAttachab
 		TerminalManagerServer.instance.registerBridge(guid, this);
 	}
 
-	@Override
-	public void updateEntity() {
-		super.updateEntity();
-		if (worldObj.isRemote || globalSurface == null) return;
+	/**
+	 * Called by {@link TerminalManagerServer} when player is no longer wearing glasses bound to this bridge (or logged out)
+	 */
+	public void onPlayerLeave(UUID playerId) {
+		final PlayerInfo info = knownPlayersByUUID.remove(playerId);
+		if (info == null) return;
 
-		Iterator<PlayerInfo> it = knownPlayersByUUID.values().iterator();
-		while (it.hasNext()) {
-			final PlayerInfo info = it.next();
-			final EntityPlayerMP player = info.player.get();
+		knownPlayersByName.remove(info.profile.getName());
 
-			if (!isPlayerValid(player)) {
-				sendCleanPackets(player);
-				it.remove();
-			}
+		final EntityPlayerMP player = info.player.get();
+		if (player != null) {
+			newPlayers.remove(player);
+			sendCleanPackets(player);
 		}
 	}
 
+	/**
+	 * Called by {@link TerminalManagerServer} when registered player got new entity, but is still wearing glasses bound to this bridge
+	 */
+	public void onPlayerEntityChanged(EntityPlayerMP player) {
+		final PlayerInfo info = knownPlayersByUUID.get(player.getGameProfile().getId());
+		if (info != null) info.player = new WeakReference<EntityPlayerMP>(player);
+	}
+
 	private void sendCleanPackets(EntityPlayerMP player) {
 		new TerminalClearEvent(guid, false).sendToPlayer(player);
 		new TerminalClearEvent(guid, true).sendToPlayer(player);
 	}
 
-	private boolean isPlayerValid(EntityPlayerMP player) {
-		if (player == null) return false;
-
-		if (player.isDead && !isPlayerLogged(player)) return false;
-
-		Long guid = TerminalUtils.tryGetTerminalGuid(player);
-		return guid != null && guid == this.guid;
-	}
-
-	private static boolean isPlayerLogged(EntityPlayerMP player) {
-		final GameProfile gameProfile = player.getGameProfile();
-		@SuppressWarnings("unchecked")
-		List<EntityPlayerMP> players = MinecraftServer.getServer().getConfigurationManager().playerEntityList;
-		for (EntityPlayerMP p : players) {
-			if (p.getGameProfile().equals(gameProfile)) return true;
-		}
-
-		return false;
-	}
-
 	@Override
 	public void writeToNBT(NBTTagCompound tag) {
 		super.writeToNBT(tag);
 		tag.setLong(TAG_GUID, guid);
+		tag.setInteger(TAG_AUTO_SYNC_INTERVAL, autoSyncInterval);
+		tag.setInteger(TAG_AUTO_SYNC_BUDGET, autoSyncBudget);
 	}
 
 	@Override
@@ -140,6 +164,8 @@ public class TileEntityGlassesBridge extends OpenTileEntity implements IAttachab
 		super.readFromNBT(tag);
 		Long guid = TerminalUtils.extractGuid(tag);
 		if (guid != null) this.guid = guid;
+		autoSyncInterval = tag.getInteger(TAG_AUTO_SYNC_INTERVAL);
+		autoSyncBudget = tag.getInteger(TAG_AUTO_SYNC_BUDGET);
 	}
 
 	@Override
@@ -181,6 +207,11 @@ public class TileEntityGlassesBridge extends OpenTileEntity implements IAttachab
 		computers.remove(computer);
 	}
 
+	private SurfaceServer getOrCreateSurface(PlayerInfo info) {
+		Preconditions.checkNotNull(info, "Invalid player");
+		return info.getOrCreateSurface();
+	}
+
 	public SurfaceServer getSurface(String username) {
 		if (TerminalUtils.GLOBAL_MARKER.equals(username)) return globalSurface;
 		PlayerInfo info = knownPlayersByName.get(username);
@@ -193,47 +224,153 @@ public class TileEntityGlassesBridge extends OpenTileEntity implements IAttachab
 		return info != null? info.surface : null;
 	}
 
+	private boolean hasPendingUpdates() {
+		if (!newPlayers.isEmpty() || globalSurface.hasUnsentUpdates()) return true;
+
+		for (PlayerInfo info : knownPlayersByUUID.values()) {
+			final SurfaceServer privateSurface = info.surface;
+			if (privateSurface != null && (info.isSurfaceNew || privateSurface.hasUnsentUpdates())) return true;
+		}
+
+		return false;
+	}
+
+	/**
+	 * Called by {@link TerminalManagerServer} at the end of every server tick.
+	 * All changes done since last flush are sent as single update per surface and player.
+	 */
+	public void onServerTick() {
+		if (autoSyncInterval <= 0 || worldObj == null || worldObj.isRemote) return;
+
+		// credit is limited to single interval, so long idle time does not allow burst over budget
+		if (autoSyncBudget > 0) syncCredit = Math.min(syncCredit + autoSyncBudget, (long)autoSyncBudget * autoSyncInterval);
+
+		if (ticksSinceSync < autoSyncInterval) ticksSinceSync++;
+		if (ticksSinceSync < autoSyncInterval) return;
+		if (autoSyncBudget > 0 && syncCredit < 0) return;
+
+		if (hasPendingUpdates()) {
+			ticksSinceSync = 0;
+			final long bytesSent = flushUpdates();
+			if (autoSyncBudget > 0) syncCredit -= bytesSent;
+		}
+	}
+
+	@LuaCallable(description = "Enable or disable sending updates at the end of server tick, without calling sync()")
+	public void setAutoSync(
+			@Arg(name = "enabled", description = "Should updates be sent automatically") boolean enabled,
+			@Optionals @Arg(name = "interval", description = "Number of ticks between updates (default: 1)") Integer interval,
+			@Arg(name = "budget", description = "Average number of bytes per tick that can be sent by bridge (to all players together). Bigger updates will delay next ones (default: unlimited)") Integer budget) {
+		if (enabled) {
+			final int newInterval = Objects.firstNonNull(interval, 1);
+			final int newBudget = Objects.firstNonNull(budget, 0);
+			Preconditions.checkArgument(newInterval > 0, "Interval must be positive");
+			Preconditions.checkArgument(newBudget >= 0, "Budget can't be negative");
+			autoSyncInterval = newInterval;
+			autoSyncBudget = newBudget;
+		} else {
+			autoSyncInterval = 0;
+			autoSyncBudget = 0;
+		}
+
+		ticksSinceSync = 0;
+		syncCredit = 0;
+		markDirty();
+	}
+
+	@Asynchronous
+	@LuaCallable(returnTypes = LuaReturnType.BOOLEAN, description = "Check if updates are sent automatically")
+	public boolean isAutoSyncEnabled() {
+		return autoSyncInterval > 0;
+	}
+
+	private int sendToPlayer(TerminalDataEvent event, EntityPlayerMP player) {
+		event.sendToPlayer(player);
+		final int size = event.getPayloadSize();
+		packetsSent.incrementAndGet();
+		bytesSent.addAndGet(size);
+		uncompressedBytesSent.addAndGet(event.getUncompressedSize());
+		return size;
+	}
+
 	// never, ever make this asynchronous
 	@LuaCallable(description = "Send updates to client. Without it changes won't be visible", name = "sync")
 	public void syncContents() {
-		TerminalDataEvent globalChange = null;
+		flushUpdates();
+	}
 
-		final boolean sendGlobalUpdate = globalSurface.hasUpdates();
+	/**
+	 * @return total size of payloads sent to all players
+	 */
+	private long flushUpdates() {
+		long totalBytes = 0;
+		int globalChangeReceivers = 0;
 
-		synchronized (globalSurface) {
-			for (PlayerInfo info : knownPlayersByUUID.values()) {
-				final EntityPlayerMP player = info.player.get();
+		// events are encoded under surface lock, but compressed and sent without it, so Lua writers are blocked only for encoding
+		final List<TerminalDataEvent> globalChanges = globalSurface.takeUpdateEvents(guid, false);
 
-				if (!isPlayerValid(player)) continue;
+		for (PlayerInfo info : knownPlayersByUUID.values()) {
+			final SurfaceServer privateSurface = info.surface;
 
-				if (sendGlobalUpdate) {
-					if (globalChange == null) globalChange = TerminalManagerServer.createUpdateDataEvent(globalSurface, guid, false);
-					globalChange.sendToPlayer(player);
-				}
+			// players without private surface only need global changes
+			if (globalChanges.isEmpty() && privateSurface == null) continue;
 
-				final SurfaceServer privateSurface = info.surface;
+			final EntityPlayerMP player = info.player.get();
 
-				if (privateSurface != null) {
-					synchronized (privateSurface) {
-						if (privateSurface.hasUpdates()) {
-							TerminalDataEvent privateData = TerminalManagerServer.createUpdateDataEvent(privateSurface, guid, true);
-							privateData.sendToPlayer(player);
-						}
-					}
-				}
-			}
+			// players that left are removed by presence tracking in TerminalManagerServer
+			if (player == null) continue;
 
-			TerminalDataEvent globalFull = null;
+			// new players will get full contents instead
+			if (!globalChanges.isEmpty() && !newPlayers.contains(player)) {
+				for (TerminalDataEvent globalChange : globalChanges)
+					totalBytes += sendToPlayer(globalChange, player);
+				globalChangeReceivers++;
+			}
 
-			for (EntityPlayerMP newPlayer : newPlayers) {
-				if (isPlayerValid(newPlayer)) {
-					if (globalFull == null) globalFull = TerminalManagerServer.createFullDataEvent(globalSurface, guid, false);
-					globalFull.sendToPlayer(newPlayer);
+			if (privateSurface != null) {
+				final List<TerminalDataEvent> privateChanges = privateSurface.takeUpdateEvents(guid, true);
+				if (info.isSurfaceNew) {
+					// otherwise first update would be rejected by client and followed by reset request
+					info.isSurfaceNew = false;
+					totalBytes += sendToPlayer(privateSurface.getFullDataEvent(guid, true), player);
+				} else {
+					for (TerminalDataEvent privateChange : privateChanges)
+						totalBytes += sendToPlayer(privateChange, player);
 				}
 			}
+		}
 
+		TerminalDataEvent globalFull = null;
+		int globalFullReceivers = 0;
+
+		// players that left were already removed from this set
+		for (EntityPlayerMP newPlayer : newPlayers) {
+			if (globalFull == null) globalFull = globalSurface.getFullDataEvent(guid, false);
+			totalBytes += sendToPlayer(globalFull, newPlayer);
+			globalFullReceivers++;
 		}
+
+		// every event is encoded once, no matter how many players receive it
+		if (globalChangeReceivers > 1) savedEncodes.addAndGet((globalChangeReceivers - 1) * globalChanges.size());
+		if (globalFullReceivers > 1) savedEncodes.addAndGet(globalFullReceivers - 1);
+
 		newPlayers.clear();
+		return totalBytes;
+	}
+
+	@Asynchronous
+	@LuaCallable(returnTypes = LuaReturnType.TABLE, description = "Get statistics of updates sent to clients")
+	public Map<String, Object> getSyncStatistics() {
+		Map<String, Object> result = Maps.newHashMap();
+		// counters are read separately, so they may be off by single packet, if sync is in progress
+		final long packetsSent = this.packetsSent.get();
+		final long bytesSent = this.bytesSent.get();
+		result.put("savedEncodes", savedEncodes.get());
+		result.put("packetsSent", packetsSent);
+		result.put("bytesSent", bytesSent);
+		result.put("uncompressedBytesSent", uncompressedBytesSent.get());
+		result.put("averagePacketSize", packetsSent > 0? (double)bytesSent / packetsSent : 0.0);
+		return result;
 	}
 
 	@Asynchronous
@@ -262,20 +399,30 @@ public class TileEntityGlassesBridge extends OpenTileEntity implements IAttachab
 		return GlassesRenderingUtils.getStringWidth(text);
 	}
 
+	@Asynchronous
+	@LuaCallable(returnTypes = LuaReturnType.TABLE, description = "Get the display widths of multiple strings. Result has same keys as argument")
+	public Map<Object, Integer> getStringWidths(@Arg(name = "texts", description = "Table of strings to measure", type = LuaArgType.TABLE) Map<?, ?> texts) {
+		return GlassesRenderingUtils.getStringWidths(texts);
+	}
+
+	@Asynchronous
+	@LuaCallable(returnTypes = LuaReturnType.TABLE, description = "Get width of every character of default font and line height, for measuring text without calls to bridge")
+	public Map<String, Object> getFontMetrics() {
+		return GlassesRenderingUtils.getFontMetrics();
+	}
+
 	@Asynchronous
 	@LuaCallable(returnTypes = LuaReturnType.OBJECT, description = "Get the surface of a user to draw privately on their screen")
 	public IDrawableContainer getSurfaceByName(@Arg(name = "username", description = "The username of the user to get the draw surface for") String username) {
-		SurfaceServer playerSurface = getSurface(username);
-		Preconditions.checkNotNull(playerSurface, "Invalid player");
-		return playerSurface;
+		if (TerminalUtils.GLOBAL_MARKER.equals(username)) return globalSurface;
+		return getOrCreateSurface(knownPlayersByName.get(username));
 	}
 
 	@Asynchronous
 	@LuaCallable(returnTypes = LuaReturnType.OBJECT, description = "Get the surface of a user to draw privately on their screen")
 	public IDrawableContainer getSurfaceByUUID(@Arg(name = "uuid", description = "The uuid of the user to get the draw surface for") String username) {
 		UUID uuid = UUID.fromString(username);
-		SurfaceServer playerSurface = getSurface(uuid);
-		Preconditions.checkNotNull(playerSurface, "Invalid player");
-		return playerSurface;
+		if (TerminalUtils.GLOBAL_SURFACE_UUID.equals(uuid)) return globalSurface;
+		return getOrCreateSurface(knownPlayersByUUID.get(uuid));
 	}
 }